@@ -0,0 +1,346 @@
+package com.interview.systemdesign.im;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 投递确认与重传
+ *
+ * 问题：
+ * 1. 客户端发送超时会重试，服务端每次都当新消息写一遍，接收方收到重复消息
+ * 2. delivered 只在接收时翻一下，发送方拿不到送达结果；没有确认就没有重传，只能靠客户端重发
+ *
+ * 方案：
+ * 1. 客户端给每条消息带递增的客户端消息ID，服务端按发送者维护一个64位滑动窗口（位图 + 对应的消息指针）：
+ *    窗口内见过的ID直接返回第一次的结果，比窗口还旧的拒绝
+ * 2. 确认按会话批量："这个会话我收到了序号N及之前的全部"，一次ack清掉一批，服务端只记每个(用户, 会话)的水位
+ * 3. 重传不按消息建定时器，而是每个(用户, 会话)在时间轮上最多挂一个检查点：
+ *    到期时水位没追上投递给该用户的最新序号，就把 (水位, 最新] 这一段重新投递并指数退避；
+ *    落后超过一批时只补最新的一批。ack只改水位，时间轮上的条目到期时惰性失效
+ * 4. 水位从第一次投递的前一条开始，后加入的群成员不会被补发入群前的历史
+ * 5. 重传若干次仍未确认，或者用户已经离线，就停止，后续靠离线收件箱和sync补齐
+ * 6. 群会话不按成员挂检查点：整个群一个，发消息只是 O(1) 地推高它的最新序号；
+ *    到期时才取一次成员列表，逐个和各自的ack水位比较，落后的成员各补一批
+ */
+public class DeliveryTracker implements AutoCloseable {
+
+    /**
+     * 不去重（老接口发的消息没有客户端消息ID）
+     */
+    public static final long NO_CLIENT_ID = -1;
+
+    static final int WINDOW = 64;
+    static final int MAX_REDELIVER_BATCH = 64;
+
+    /**
+     * 重新投递一个消息指针（走原来的扩散通道）
+     */
+    interface Redelivery {
+        void redeliver(String userId, long pointer);
+    }
+
+    private final IntFunction<MessageLog> logs;
+    private final Redelivery redelivery;
+    private final long ackTimeoutTicks;
+    private final int maxAttempts;
+    private volatile Predicate<String> online = userId -> true;
+    private final Map<String, SenderWindow> windows = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Watermark>> watermarks = new ConcurrentHashMap<>();
+    private final Map<Integer, Watermark> groups = new ConcurrentHashMap<>();
+    private final List<List<Watermark>> wheel;
+    private final int wheelMask;
+    private volatile long currentTick;  // 只由定时线程写
+    private final LongAdder redelivered = new LongAdder();
+    private final ScheduledExecutorService timer;
+
+    DeliveryTracker(IntFunction<MessageLog> logs, Redelivery redelivery) {
+        this(logs, redelivery, 5_000, 500, 5);
+    }
+
+    /**
+     * @param ackTimeoutMillis 投递后多久没确认开始重传，之后每次翻倍
+     * @param tickMillis 时间轮精度
+     * @param maxAttempts 最多重传次数
+     */
+    DeliveryTracker(IntFunction<MessageLog> logs, Redelivery redelivery,
+                    long ackTimeoutMillis, long tickMillis, int maxAttempts) {
+        this.logs = logs;
+        this.redelivery = redelivery;
+        this.ackTimeoutTicks = Math.max(1, ackTimeoutMillis / tickMillis);
+        this.maxAttempts = maxAttempts;
+        // 一圈要放得下退避后的最大延迟
+        int size = Integer.highestOneBit((int) Math.min(ackTimeoutTicks << Math.min(maxAttempts, 10), 1 << 16)) << 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.wheelMask = size - 1;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delivery-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发送者的去重窗口；调用方在窗口上加锁完成 查重 -> 写日志 -> 登记
+     */
+    SenderWindow window(String senderId) {
+        return windows.computeIfAbsent(senderId, k -> new SenderWindow());
+    }
+
+    /**
+     * 在线判断，离线用户不重传（默认都当作在线）
+     */
+    void setOnlineCheck(Predicate<String> online) {
+        this.online = online;
+    }
+
+    /**
+     * 会话里序号为 seq 的消息投递给了用户：还没有挂检查点就挂一个
+     */
+    void expect(String userId, int convId, long seq) {
+        Watermark watermark = watermarkOf(userId, convId);
+        synchronized (watermark) {
+            watermark.expected = Math.max(watermark.expected, seq);
+            if (watermark.scheduled) {
+                return;
+            }
+            // 之前的要么已确认，要么已放弃重传，从这条开始跟踪
+            watermark.acked = Math.max(watermark.acked, seq - 1);
+            watermark.scheduled = true;
+            watermark.attempts = 0;
+            schedule(watermark, ackTimeoutTicks);
+        }
+    }
+
+    /**
+     * 群消息扩散给了全体成员：群检查点没挂就挂上
+     *
+     * @param members 到期检查时才调用，取当前成员
+     */
+    void expectGroup(int convId, long seq, Supplier<? extends Collection<String>> members) {
+        Watermark watermark = groups.computeIfAbsent(convId, k -> new Watermark(null, convId));
+        synchronized (watermark) {
+            watermark.members = members;
+            watermark.expected = Math.max(watermark.expected, seq);
+            if (watermark.scheduled) {
+                return;
+            }
+            // 群水位是所有成员的下限：之前的要么都确认了，要么已放弃重传
+            watermark.acked = Math.max(watermark.acked, seq - 1);
+            watermark.scheduled = true;
+            watermark.attempts = 0;
+            schedule(watermark, ackTimeoutTicks);
+        }
+    }
+
+    /**
+     * 群里 upToSeq 及之前的消息都不再重传（读扩散期间的消息由成员按读游标拉取）
+     */
+    void skipGroup(int convId, long upToSeq) {
+        Watermark watermark = groups.get(convId);
+        if (watermark != null) {
+            synchronized (watermark) {
+                watermark.acked = Math.max(watermark.acked, upToSeq);
+            }
+        }
+    }
+
+    /**
+     * 批量确认：该会话序号 upToSeq 及之前的消息都已收到（或不需要再重传）
+     */
+    void ack(String userId, int convId, long upToSeq) {
+        Watermark watermark = watermarkOf(userId, convId);
+        synchronized (watermark) {
+            watermark.acked = Math.max(watermark.acked, upToSeq);
+        }
+    }
+
+    /**
+     * 用户在会话里已确认的序号，没有确认过为0
+     */
+    long ackedSeq(String userId, int convId) {
+        Map<Integer, Watermark> perUser = watermarks.get(userId);
+        Watermark watermark = perUser == null ? null : perUser.get(convId);
+        if (watermark == null) {
+            return 0;
+        }
+        synchronized (watermark) {
+            return watermark.acked;
+        }
+    }
+
+    /**
+     * 累计重传的指针数
+     */
+    public long getRedeliveredCount() {
+        return redelivered.sum();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+    }
+
+    /**
+     * 推进一个tick，处理到期的检查点
+     */
+    void tick() {
+        long tick = currentTick + 1;
+        currentTick = tick;
+        List<Watermark> slot = wheel.get((int) (tick & wheelMask));
+        List<Watermark> due;
+        synchronized (slot) {
+            due = new ArrayList<>(slot);
+            slot.clear();
+        }
+        for (Watermark watermark : due) {
+            check(watermark, tick);
+        }
+    }
+
+    private void check(Watermark watermark, long tick) {
+        List<String> users = new ArrayList<>();
+        List<Long> pointers = new ArrayList<>();
+        synchronized (watermark) {
+            if (watermark.deadline != tick) {
+                return;  // 已被重新安排
+            }
+            long to = watermark.expected;
+            if (watermark.acked < to && watermark.attempts < maxAttempts) {
+                // 这一轮最多补 (from, to]，先把每条的发送者取出来，群里各成员共用
+                long from = Math.max(watermark.acked, to - MAX_REDELIVER_BATCH);
+                String[] senders = senders(logs.apply(watermark.convId), from, to);
+                if (watermark.members == null) {
+                    collect(watermark.userId, watermark.acked, from, to, senders, watermark.convId, users, pointers);
+                } else {
+                    for (String member : watermark.members.get()) {
+                        long acked = Math.max(watermark.acked, ackedSeq(member, watermark.convId));
+                        collect(member, acked, from, to, senders, watermark.convId, users, pointers);
+                    }
+                }
+            }
+            if (users.isEmpty()) {
+                watermark.scheduled = false;  // 都追上了、都离线了，或者放弃（交给离线收件箱和sync）
+                return;
+            }
+            watermark.attempts++;
+            schedule(watermark, ackTimeoutTicks << Math.min(watermark.attempts, 10));
+        }
+        for (int i = 0; i < users.size(); i++) {
+            redelivery.redeliver(users.get(i), pointers.get(i));
+        }
+        redelivered.add(pointers.size());
+    }
+
+    /**
+     * 一个用户要补的指针：(max(acked, from), to] 里别人发的消息；在线才补
+     */
+    private void collect(String userId, long acked, long from, long to, String[] senders, int convId,
+                         List<String> users, List<Long> pointers) {
+        if (acked >= to || !online.test(userId)) {
+            return;
+        }
+        for (long seq = Math.max(acked, from) + 1; seq <= to; seq++) {
+            String sender = senders[(int) (seq - from - 1)];
+            if (sender != null && !userId.equals(sender)) {
+                users.add(userId);
+                pointers.add(FanoutEngine.pack(convId, seq));
+            }
+        }
+    }
+
+    private static String[] senders(MessageLog log, long from, long to) {
+        String[] senders = new String[(int) (to - from)];
+        for (long seq = from + 1; seq <= to; seq++) {
+            IMSystemDesign.Message message = log.get(seq);
+            senders[(int) (seq - from - 1)] = message == null ? null : message.getSenderId();
+        }
+        return senders;
+    }
+
+    private void schedule(Watermark watermark, long delayTicks) {
+        long deadline = currentTick + Math.min(delayTicks, wheelMask);
+        watermark.deadline = deadline;
+        List<Watermark> slot = wheel.get((int) (deadline & wheelMask));
+        synchronized (slot) {
+            slot.add(watermark);
+        }
+    }
+
+    private Watermark watermarkOf(String userId, int convId) {
+        return watermarks.computeIfAbsent(userId, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(convId, k -> new Watermark(userId, convId));
+    }
+
+    /**
+     * 一个用户在一个会话里的确认水位和重传状态，字段都在自身锁内访问
+     *
+     * 群检查点也用它：userId为null，acked是全体成员的下限，members取当前成员。
+     */
+    private static final class Watermark {
+        final String userId;
+        final int convId;
+        long acked;
+        long expected;  // 投递给该用户（群检查点：扩散出去）的最大序号，重传不超过它
+        Supplier<? extends Collection<String>> members;
+        boolean scheduled;
+        int attempts;
+        long deadline;
+
+        Watermark(String userId, int convId) {
+            this.userId = userId;
+            this.convId = convId;
+        }
+    }
+
+    /**
+     * 按发送者的去重滑动窗口：最近 WINDOW 个客户端消息ID
+     *
+     * 第 i 位表示 (highest - i) 是否出现过，对应的消息指针放在 pointers[id % WINDOW]。
+     */
+    static final class SenderWindow {
+        static final long NEW = -1;
+        static final long TOO_OLD = -2;
+
+        private long highest = -1;
+        private long seen;
+        private final long[] pointers = new long[WINDOW];
+
+        /**
+         * @return 第一次发送时的消息指针；没见过返回 NEW；比窗口还旧返回 TOO_OLD
+         */
+        long find(long clientMsgId) {
+            if (clientMsgId > highest) {
+                return NEW;
+            }
+            long offset = highest - clientMsgId;
+            if (offset >= WINDOW) {
+                return TOO_OLD;
+            }
+            return (seen >>> offset & 1) != 0 ? pointers[(int) (clientMsgId & (WINDOW - 1))] : NEW;
+        }
+
+        void record(long clientMsgId, long pointer) {
+            if (clientMsgId > highest) {
+                long shift = clientMsgId - highest;
+                seen = shift >= WINDOW ? 0 : seen << shift;
+                highest = clientMsgId;
+            }
+            seen |= 1L << (highest - clientMsgId);
+            pointers[(int) (clientMsgId & (WINDOW - 1))] = pointer;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.interview.systemdesign.im;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * 群消息扩散引擎
+ *
+ * 问题：
+ * 原来每条群消息给每个成员new一个Message，再offer到各自的LinkedBlockingQueue：
+ * 万人群发一条就是一万次对象分配 + 一万次加锁。
+ *
+ * 方案：
+ * 1. 写扩散：消息在会话日志里只存一份，给每个收件箱追加一个long指针（会话ID &lt;&lt; 32 | 序号）
+ * 2. 成员按用户哈希分到固定的扩散通道（lane），每个通道一个线程，一条消息按通道分批并行投递
+ *    同一用户永远落在同一通道，收件箱只有一个写者，且同一会话的消息按序到达
+ * 3. 读扩散：成员数超过阈值的超大群不扩散，成员自己按读游标去群日志里拉
+ * 4. 成员直接用群成员索引里的int快照，发送线程只把int分到各通道，转回用户ID和写收件箱都在通道线程里做
+ *
+ * 指针位宽：31位会话ID（约21亿个会话，私聊按用户对各占一个）+ 32位序号（单会话约43亿条）。
+ */
+public class FanoutEngine implements AutoCloseable {
+
+    static final int SEQ_BITS = 32;
+    static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+    static final int MAX_CONVERSATIONS = Integer.MAX_VALUE;  // 会话ID占剩下的31位，指针不会是负数
+
+    private final ExecutorService[] lanes;
+    private final int readDiffusionThreshold;
+    private final LongAdder pointers = new LongAdder();
+
+    public FanoutEngine() {
+        this(Runtime.getRuntime().availableProcessors(), 2000);
+    }
+
+    /**
+     * @param laneCount 扩散通道数
+     * @param readDiffusionThreshold 成员数超过该值的群走读扩散
+     */
+    public FanoutEngine(int laneCount, int readDiffusionThreshold) {
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "fanout-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.readDiffusionThreshold = readDiffusionThreshold;
+    }
+
+    public boolean isReadDiffusion(int memberCount) {
+        return memberCount > readDiffusionThreshold;
+    }
+
+    /**
+     * 把消息指针投递到所有收件人的收件箱
+     *
+     * @param recipients 收件人的int快照（只读）
+     * @param exclude 不投递的用户int（发送者自己），没有传-1
+     * @param names 用户int -> 用户ID
+     * @return 所有通道投递完成时完成，值为投递的收件箱数
+     */
+    public CompletableFuture<Integer> fanOut(long pointer, int[] recipients, int exclude, IntFunction<String> names,
+                                             Function<String, Inbox> inboxes) {
+        // 按通道分批：每个通道一个任务，而不是每个成员一个任务；批里只放int
+        int[] laneOfMember = new int[recipients.length];
+        int[] counts = new int[lanes.length];
+        for (int m = 0; m < recipients.length; m++) {
+            if (recipients[m] != exclude) {
+                int lane = laneOf(names.apply(recipients[m]));
+                laneOfMember[m] = lane;
+                counts[lane]++;
+            }
+        }
+        int[][] batches = new int[lanes.length][];
+        for (int i = 0; i < lanes.length; i++) {
+            batches[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int m = 0; m < recipients.length; m++) {
+            if (recipients[m] != exclude) {
+                int lane = laneOfMember[m];
+                batches[lane][counts[lane]++] = recipients[m];
+            }
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[lanes.length];
+        int total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            int[] batch = batches[i];
+            total += batch.length;
+            if (batch.length == 0) {
+                futures[i] = CompletableFuture.completedFuture(null);
+                continue;
+            }
+            futures[i] = CompletableFuture.runAsync(() -> {
+                for (int member : batch) {
+                    inboxes.apply(names.apply(member)).offer(pointer);
+                }
+                pointers.add(batch.length);
+            }, lanes[i]);
+        }
+        int delivered = total;
+        return CompletableFuture.allOf(futures).thenApply(v -> delivered);
+    }
+
+    /**
+     * 单个收件人（私聊）也走所属通道，保证收件箱单写者
+     */
+    public CompletableFuture<Void> deliver(long pointer, String userId, Function<String, Inbox> inboxes) {
+        return CompletableFuture.runAsync(() -> {
+            inboxes.apply(userId).offer(pointer);
+            pointers.increment();
+        }, lanes[laneOf(userId)]);
+    }
+
+    /**
+     * 累计投递的指针数
+     */
+    public long getPointerCount() {
+        return pointers.sum();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            try {
+                lane.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private int laneOf(String userId) {
+        int h = userId.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    static long pack(int convId, long seq) {
+        return (long) convId << SEQ_BITS | seq;
+    }
+
+    static int convId(long pointer) {
+        return (int) (pointer >>> SEQ_BITS);
+    }
+
+    static long seq(long pointer) {
+        return pointer & SEQ_MASK;
+    }
+
+    /**
+     * 用户收件箱：long指针的环形队列
+     *
+     * 写者是所属扩散通道（单线程），读者是用户的接收线程。
+     * 有容量上限时，满了把最旧的指针溢出到 OfflineStore，内存里只留最近 capacity 条；
+     * 在线用户正常消费不会触发溢出，重连时用 drainAll 一次取回。
+     *
+     * 只有接收线程在等时才唤醒，投递一个指针就是一次无竞争的加锁。
+     * 溢出写磁盘在收件箱锁外面做（单独的溢出锁只和 drainAll 互斥），接收线程 poll 不会被磁盘写挡住。
+     */
+    static class Inbox {
+        private static final long[] EMPTY = new long[0];
+        private static final long FULL = -2;
+
+        private final int capacity;
+        private final OfflineStore overflow;
+        private long[] pointers = new long[16];
+        private int head;
+        private int size;
+        private final Object spillLock = new Object();
+        private long spillHead = OfflineStore.NONE;  // 最新一条溢出记录的地址，两把锁都持有时才改
+        private int spilled;
+        private int waiters;
+
+        Inbox() {
+            this(Integer.MAX_VALUE, null);
+        }
+
+        Inbox(int capacity, OfflineStore overflow) {
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
+
+        void offer(long pointer) {
+            if (insert(pointer, false) != FULL) {
+                return;
+            }
+            synchronized (spillLock) {
+                long evicted = insert(pointer, true);
+                if (evicted >= 0) {
+                    long address = overflow.append(evicted, spillHead, System.currentTimeMillis());
+                    synchronized (this) {
+                        spillHead = address;
+                        spilled++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param evict 满了是否挤掉最旧的一条
+         * @return 被挤掉的指针；没有挤掉返回-1；满了又不允许挤掉返回 FULL（没有插入）
+         */
+        private synchronized long insert(long pointer, boolean evict) {
+            long evicted = -1;
+            if (size >= capacity && overflow != null) {
+                if (!evict) {
+                    return FULL;
+                }
+                evicted = pointers[head];
+                head = (head + 1) & (pointers.length - 1);
+                size--;
+            }
+            if (size == pointers.length) {
+                grow();
+            }
+            pointers[(head + size) & (pointers.length - 1)] = pointer;
+            size++;
+            if (waiters > 0) {
+                notifyAll();
+            }
+            return evicted;
+        }
+
+        /**
+         * @return 指针，超时返回-1
+         */
+        synchronized long poll(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (size == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return -1;
+                }
+                waiters++;
+                try {
+                    wait(remaining);
+                } finally {
+                    waiters--;
+                }
+            }
+            long pointer = pointers[head];
+            head = (head + 1) & (pointers.length - 1);
+            size--;
+            return pointer;
+        }
+
+        /**
+         * 取走全部指针：先是溢出到磁盘的（更早），再是内存里的
+         */
+        long[] drainAll() {
+            long spillAddress;
+            int spillCount;
+            long[] recent;
+            // 先拿溢出锁：正在溢出的那一条要么已经挂上链表，要么还在内存里，不会两边都不在
+            synchronized (spillLock) {
+                synchronized (this) {
+                    spillAddress = spillHead;
+                    spillCount = spilled;
+                    spillHead = OfflineStore.NONE;
+                    spilled = 0;
+                    recent = new long[size];
+                    for (int i = 0; i < size; i++) {
+                        recent[i] = pointers[(head + i) & (pointers.length - 1)];
+                    }
+                    head = 0;
+                    size = 0;
+                }
+            }
+            // 读磁盘不占收件箱的锁，扩散通道可以继续投递
+            long[] older = spillCount == 0 ? EMPTY
+                : overflow.read(spillAddress, spillCount, System.currentTimeMillis());
+            long[] all = Arrays.copyOf(older, older.length + recent.length);
+            System.arraycopy(recent, 0, all, older.length, recent.length);
+            return all;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int spilledCount() {
+            return spilled;
+        }
+
+        private void grow() {
+            long[] grown = new long[pointers.length << 1];
+            for (int i = 0; i < size; i++) {
+                grown[i] = pointers[(head + i) & (pointers.length - 1)];
+            }
+            pointers = grown;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.interview.systemdesign.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 好友关系图
+ *
+ * 问题：
+ * 1. friends 是 ConcurrentHashMap&lt;String, HashSet&lt;String&gt;&gt;，并发 addFriend 写同一个HashSet不安全
+ * 2. 每条边两个HashMap.Node + 字符串引用，约100字节
+ * 3. 共同好友、好友推荐只能拿两个Set逐个contains
+ *
+ * 方案：
+ * 1. 用户ID驻留成int（和在线状态位图共用一套），邻接表是有序int[]，写时复制，每条边两个int（8字节）
+ * 2. 共同好友 = 两个有序数组求交：长度相近时双指针归并，相差悬殊时小数组逐个到大数组里二分
+ * 3. 好友推荐 = 好友的好友按共同好友数排序：把二度邻居收集成一个int数组排序后数连续段，取前K
+ *
+ * 一条边的两个方向在按 (较小ID, 较大ID) 选出的条带锁里一起写，并发加/删同一对好友不会留下单向关系；读不加锁。
+ */
+public class FriendGraph {
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final IdInterner userIds;
+    private final IntSetTable adjacency = new IntSetTable();
+    private final Object[] writeLocks = new Object[LOCK_STRIPES];
+
+    public FriendGraph() {
+        this(new IdInterner());
+    }
+
+    FriendGraph(IdInterner userIds) {
+        this.userIds = userIds;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return false 表示已经是好友或者是同一个人
+     */
+    public boolean addFriend(String userId, String friendId) {
+        if (userId.equals(friendId)) {
+            return false;
+        }
+        int user = userIds.intern(userId);
+        int friend = userIds.intern(friendId);
+        synchronized (lockFor(user, friend)) {
+            if (!adjacency.add(user, friend)) {
+                return false;
+            }
+            adjacency.add(friend, user);
+            return true;
+        }
+    }
+
+    public boolean removeFriend(String userId, String friendId) {
+        int user = userIds.find(userId);
+        int friend = userIds.find(friendId);
+        if (user < 0 || friend < 0) {
+            return false;
+        }
+        synchronized (lockFor(user, friend)) {
+            if (!adjacency.remove(user, friend)) {
+                return false;
+            }
+            adjacency.remove(friend, user);
+            return true;
+        }
+    }
+
+    public boolean areFriends(String userId, String friendId) {
+        int user = userIds.find(userId);
+        int friend = userIds.find(friendId);
+        return user >= 0 && friend >= 0 && adjacency.contains(user, friend);
+    }
+
+    /**
+     * 好友列表快照
+     */
+    public List<String> friendsOf(String userId) {
+        return userIds.names(friendIds(userId));
+    }
+
+    public int friendCount(String userId) {
+        return friendIds(userId).length;
+    }
+
+    /**
+     * 有序的好友int数组（只读，不要修改）
+     */
+    int[] friendIds(String userId) {
+        int user = userIds.find(userId);
+        return user < 0 ? IntSetTable.EMPTY : adjacency.get(user);
+    }
+
+    /**
+     * 共同好友
+     */
+    public List<String> mutualFriends(String userId, String otherId) {
+        return userIds.names(intersect(friendIds(userId), friendIds(otherId)));
+    }
+
+    /**
+     * 好友推荐：好友的好友里按共同好友数从多到少取前 limit 个
+     *
+     * @param maxFriendsScanned 最多展开的好友数，防止大V把一次推荐变成全图扫描
+     */
+    public List<String> suggestFriends(String userId, int limit, int maxFriendsScanned) {
+        int user = userIds.find(userId);
+        if (user < 0 || limit <= 0) {
+            return new ArrayList<>();
+        }
+        int[] friends = adjacency.get(user);
+        int scanned = Math.min(friends.length, maxFriendsScanned);
+        int total = 0;
+        for (int i = 0; i < scanned; i++) {
+            total += adjacency.get(friends[i]).length;
+        }
+        int[] candidates = new int[total];
+        int n = 0;
+        for (int i = 0; i < scanned; i++) {
+            for (int candidate : adjacency.get(friends[i])) {
+                // 期间有并发加好友时邻接表可能变长，超出部分忽略
+                if (n < total && candidate != user && Arrays.binarySearch(friends, candidate) < 0) {
+                    candidates[n++] = candidate;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, n);
+
+        // 连续相同的int就是同一个候选人，段长 = 共同好友数；小顶堆保留前limit个 [候选人, 段长]
+        PriorityQueue<int[]> top = new PriorityQueue<>(limit + 1,
+            (a, b) -> a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(b[0], a[0]));
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j < n && candidates[j] == candidates[i]) {
+                j++;
+            }
+            top.offer(new int[] {candidates[i], j - i});
+            if (top.size() > limit) {
+                top.poll();
+            }
+            i = j;
+        }
+        String[] result = new String[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = userIds.name(top.poll()[0]);
+        }
+        return new ArrayList<>(Arrays.asList(result));
+    }
+
+    /**
+     * 同一对好友不论谁先发起都落在同一个条带
+     */
+    private Object lockFor(int user, int friend) {
+        int h = Math.min(user, friend) * 0x9E3779B9 ^ Math.max(user, friend);
+        return writeLocks[(h ^ h >>> 16) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 有序int数组求交
+     */
+    static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] tmp = a;
+            a = b;
+            b = tmp;
+        }
+        int[] result = new int[a.length];
+        int n = 0;
+        if (a.length * 16 < b.length) {
+            // 相差悬殊：小数组逐个二分，搜索起点随之前移
+            int from = 0;
+            for (int value : a) {
+                int pos = Arrays.binarySearch(b, from, b.length, value);
+                if (pos >= 0) {
+                    result[n++] = value;
+                    from = pos + 1;
+                } else {
+                    from = -pos - 1;
+                }
+            }
+        } else {
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
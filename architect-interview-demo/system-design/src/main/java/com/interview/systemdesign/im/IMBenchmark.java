@@ -0,0 +1,296 @@
+package com.interview.systemdesign.im;
+
+import com.interview.systemdesign.seckill.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * IM端到端压测：模拟大量用户对 MessageService / GroupService 收发消息，用来估算单节点容量
+ *
+ * 1. 建用户、好友和群，群大小按指定分布抽样，使每个用户平均在若干个群里
+ * 2. 按在线比例登录一部分用户，客户端线程轮流替在线用户拉取收件箱、带ack同步；离线用户的消息留在离线收件箱
+ * 3. 发送线程按目标速率发私聊 / 群消息，发送时间从计划时间算起（避免协调遗漏）
+ * 4. 报告：实际消息吞吐、扩散指针吞吐、发送耗时和扩散耗时（发送到所有收件箱写完）的分位数、每个在线用户占用的堆
+ *
+ * 用法：IMBenchmark [用户数] [在线比例] [SMALL|MIXED|HEAVY_TAIL] [每秒消息数] [持续秒数] [私聊比例] [发送线程数]
+ * 建议 -Xmx4g，结果只反映相对量级
+ */
+public class IMBenchmark {
+
+    /**
+     * 群大小分布
+     */
+    public enum GroupSizeDistribution {
+        /** 小群：3~20人均匀分布（家庭、同事群） */
+        SMALL,
+        /** 混合：80%小群，20%是50~500人的中群 */
+        MIXED,
+        /** 长尾：幂律分布，少数群上千人，超过读扩散阈值的走读扩散 */
+        HEAVY_TAIL;
+
+        int sample(SplittableRandom random, int maxSize) {
+            switch (this) {
+                case SMALL:
+                    return 3 + random.nextInt(18);
+                case MIXED:
+                    return random.nextInt(5) < 4 ? 3 + random.nextInt(18) : 50 + random.nextInt(451);
+                default:
+                    // 指数1.5的帕累托分布，下限3
+                    double size = 3 / Math.pow(1 - random.nextDouble(), 1 / 1.5);
+                    return (int) Math.min(size, maxSize);
+            }
+        }
+    }
+
+    private static final int GROUPS_PER_USER = 5;
+    private static final int FRIENDS_PER_USER = 20;
+
+    private final int userCount;
+    private final double onlineRatio;
+    private final GroupSizeDistribution distribution;
+    private final int messagesPerSecond;
+    private final long durationNanos;
+    private final double privateRatio;
+    private final int senderThreads;
+
+    private final IMSystemDesign.UserService userService = new IMSystemDesign.UserService();
+    private final IMSystemDesign.GroupService groupService = new IMSystemDesign.GroupService(userService.getUserIds());
+    private final FanoutEngine fanout = new FanoutEngine();
+    private final OfflineStore offlineStore = new OfflineStore();
+    private final IMSystemDesign.MessageService messageService =
+        new IMSystemDesign.MessageService(groupService, fanout, offlineStore, 1000);
+
+    private String[] users;
+    private String[] online;
+    private String[] groupIds;
+    private String[][] groupMembers;
+
+    private final LatencyHistogram sendLatency = new LatencyHistogram("send");
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram("fanout");
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder fannedOut = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    public IMBenchmark(int userCount, double onlineRatio, GroupSizeDistribution distribution,
+                       int messagesPerSecond, long durationSeconds, double privateRatio, int senderThreads) {
+        this.userCount = userCount;
+        this.onlineRatio = onlineRatio;
+        this.distribution = distribution;
+        this.messagesPerSecond = messagesPerSecond;
+        this.durationNanos = durationSeconds * 1_000_000_000L;
+        this.privateRatio = privateRatio;
+        this.senderThreads = senderThreads;
+        messageService.setOnlineCheck(userService.getPresence()::isOnline);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        double onlineRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.6;
+        GroupSizeDistribution distribution = args.length > 2
+            ? GroupSizeDistribution.valueOf(args[2]) : GroupSizeDistribution.MIXED;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        double privateRatio = args.length > 5 ? Double.parseDouble(args[5]) : 0.5;
+        int senders = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+
+        IMSystemDesign.verbose = false;
+        new IMBenchmark(users, onlineRatio, distribution, rate, seconds, privateRatio, senders).run();
+    }
+
+    public void run() throws InterruptedException {
+        long baseHeap = usedHeap();
+        long setupStart = System.nanoTime();
+        setup();
+        long setupHeap = usedHeap();
+        System.out.printf("users=%,d online=%,d groups=%,d (%s) setup=%dms%n", users.length, online.length,
+            groupIds.length, distribution, (System.nanoTime() - setupStart) / 1_000_000);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> clients = startClients(running);
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < senderThreads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> send(index, start), "bench-sender-" + t);
+            senders.add(thread);
+            thread.start();
+        }
+        for (Thread thread : senders) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        // 等所有扩散落到收件箱
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (fanoutLatency.getCount() < sent.sum() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long drained = System.nanoTime() - start;
+        running.set(false);
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        long runHeap = usedHeap();
+        report(elapsed, drained, baseHeap, setupHeap, runHeap);
+        messageService.close();  // 连同扩散通道一起关
+        userService.close();
+    }
+
+    /**
+     * 建用户、好友、群，登录在线用户
+     */
+    private void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        users = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = "u" + i;
+            userService.register(users[i], users[i], "pw");
+        }
+        for (int i = 0; i < userCount; i++) {
+            for (int f = 0; f < FRIENDS_PER_USER / 2; f++) {
+                userService.addFriend(users[i], users[random.nextInt(userCount)]);
+            }
+        }
+
+        List<String> ids = new ArrayList<>();
+        List<String[]> members = new ArrayList<>();
+        long memberships = 0;
+        while (memberships < (long) userCount * GROUPS_PER_USER) {
+            int size = Math.min(distribution.sample(random, userCount), userCount);
+            String[] group = new String[size];
+            group[0] = users[random.nextInt(userCount)];
+            String groupId = groupService.createGroup("g" + ids.size(), group[0]);
+            for (int m = 1; m < size; m++) {
+                group[m] = users[random.nextInt(userCount)];
+                groupService.joinGroup(groupId, group[m]);
+            }
+            ids.add(groupId);
+            members.add(group);
+            memberships += size;
+        }
+        groupIds = ids.toArray(new String[0]);
+        groupMembers = members.toArray(new String[0][]);
+
+        List<String> loggedIn = new ArrayList<>();
+        for (String user : users) {
+            if (random.nextDouble() < onlineRatio) {
+                userService.login(user, "pw");
+                loggedIn.add(user);
+            }
+        }
+        online = loggedIn.toArray(new String[0]);
+    }
+
+    /**
+     * 发送线程：第i条消息的计划时间 = 开始时间 + i * 线程数 / 速率
+     */
+    private void send(int index, long start) {
+        SplittableRandom random = new SplittableRandom(index * 7919L + 1);
+        long intervalNanos = 1_000_000_000L * senderThreads / messagesPerSecond;
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * intervalNanos + index * intervalNanos / senderThreads;
+            if (scheduled - start >= durationNanos) {
+                return;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            long sendStart = System.nanoTime();
+            IMSystemDesign.SendResult result;
+            if (random.nextDouble() < privateRatio) {
+                String sender = online[random.nextInt(online.length)];
+                String receiver = users[random.nextInt(users.length)];
+                if (sender.equals(receiver)) {
+                    continue;
+                }
+                result = messageService.sendMessage(sender, DeliveryTracker.NO_CLIENT_ID, receiver,
+                    "hello", IMSystemDesign.MessageType.TEXT);
+            } else {
+                int group = random.nextInt(groupIds.length);
+                String[] members = groupMembers[group];
+                result = messageService.sendGroupMessage(members[random.nextInt(members.length)],
+                    DeliveryTracker.NO_CLIENT_ID, groupIds[group], "hello group", IMSystemDesign.MessageType.TEXT);
+            }
+            long sentAt = System.nanoTime();
+            sendLatency.recordNanos(sentAt - scheduled);
+            sent.increment();
+            result.getDelivery().whenComplete((delivered, error) -> {
+                fanoutLatency.recordNanos(System.nanoTime() - sendStart);
+                fannedOut.add(delivered == null ? 0 : delivered);
+            });
+        }
+    }
+
+    /**
+     * 客户端线程：轮流替自己负责的在线用户拉收件箱，并带上次的序号同步一次（同步即确认）
+     */
+    private List<Thread> startClients(AtomicBoolean running) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        List<Thread> clients = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                Map<String, Map<String, Long>> acks = new HashMap<>();
+                while (running.get()) {
+                    for (int u = index; u < online.length && running.get(); u += threads) {
+                        String user = online[u];
+                        received.add(messageService.pullOffline(user).size());
+                        IMSystemDesign.SyncResponse response = messageService.sync(user, "bench",
+                            acks.get(user), 50);
+                        if (!response.getUpdates().isEmpty()) {
+                            Map<String, Long> next = new HashMap<>();
+                            for (IMSystemDesign.SyncResponse.ConversationUpdate update : response.getUpdates()) {
+                                List<IMSystemDesign.Message> messages = update.getMessages();
+                                next.put(update.getConversationKey(), messages.get(messages.size() - 1).getSeq());
+                            }
+                            acks.put(user, next);
+                        }
+                    }
+                }
+            }, "bench-client-" + t);
+            thread.setDaemon(true);
+            clients.add(thread);
+            thread.start();
+        }
+        return clients;
+    }
+
+    private void report(long elapsedNanos, long drainedNanos, long baseHeap, long setupHeap, long runHeap) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-24s %,12.0f msg/s (目标 %,d，共 %,d 条，%.1fs)%n", "发送吞吐",
+            sent.sum() / seconds, messagesPerSecond, sent.sum(), seconds);
+        System.out.printf("%-24s %,12.0f ptr/s (共 %,d 个指针，扩散收尾 %.1fs)%n", "扩散吞吐",
+            fannedOut.sum() / (drainedNanos / 1e9), fannedOut.sum(), drainedNanos / 1e9);
+        System.out.printf("%-24s %,12d 条推送拉取，重传 %,d，溢出到磁盘 %,d%n", "在线客户端", received.sum(),
+            messageService.getDeliveryTracker().getRedeliveredCount(), offlineStore.getSpilledCount());
+        System.out.println(sendLatency.summary());
+        System.out.println(fanoutLatency.summary());
+        System.out.printf("%-24s %,10.0f B/用户（用户、好友、群、在线状态）%n", "建模后堆",
+            (double) (setupHeap - baseHeap) / users.length);
+        System.out.printf("%-24s %,10.0f B/在线用户（含运行期消息、收件箱、游标）%n", "压测后堆",
+            (double) (runHeap - baseHeap) / Math.max(1, online.length));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // GC直到已用堆不再下降
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                return now;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -1,10 +1,11 @@
 package com.interview.systemdesign.im;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * 即时通讯系统设计
@@ -19,6 +20,15 @@ import java.util.concurrent.TimeUnit;
  */
 public class IMSystemDesign {
     
+    // 演示时打印每一步操作，压测时关掉
+    static volatile boolean verbose = true;
+    
+    static void log(String line) {
+        if (verbose) {
+            System.out.println(line);
+        }
+    }
+    
     /**
      * 用户实体
      */
@@ -50,26 +60,35 @@ public class IMSystemDesign {
      * 消息实体
      */
     static class Message {
-        private String messageId;
+        private long messageId;  // MessageIdGenerator分配，按时间递增
         private String senderId;
         private String receiverId;
         private String content;
         private MessageType type;
         private long timestamp;
-        private boolean delivered;
+        private boolean delivered;  // 只为接口兼容保留，送达以 DeliveryTracker 的水位为准（getDeliveredSeq）
+        private long seq;  // 会话内序号，写入会话日志时分配
         
-        public Message(String messageId, String senderId, String receiverId, String content, MessageType type) {
+        public Message(long messageId, String senderId, String receiverId, String content, MessageType type) {
+            this(messageId, senderId, receiverId, content, type, System.currentTimeMillis());
+        }
+        
+        /**
+         * 从冷存储解码时还原原始时间戳
+         */
+        Message(long messageId, String senderId, String receiverId, String content, MessageType type,
+                long timestamp) {
             this.messageId = messageId;
             this.senderId = senderId;
             this.receiverId = receiverId;
             this.content = content;
             this.type = type;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
             this.delivered = false;
         }
         
         // getters and setters
-        public String getMessageId() { return messageId; }
+        public long getMessageId() { return messageId; }
         public String getSenderId() { return senderId; }
         public String getReceiverId() { return receiverId; }
         public String getContent() { return content; }
@@ -77,6 +96,8 @@ public class IMSystemDesign {
         public long getTimestamp() { return timestamp; }
         public boolean isDelivered() { return delivered; }
         public void setDelivered(boolean delivered) { this.delivered = delivered; }
+        public long getSeq() { return seq; }
+        void setSeq(long seq) { this.seq = seq; }
     }
     
     /**
@@ -93,42 +114,60 @@ public class IMSystemDesign {
         private String groupId;
         private String groupName;
         private String creatorId;
-        private Set<String> members;
+        // 成员关系存在共享的双向索引里，群对象本身不持有集合
+        private final MembershipIndex membership;
         private long createdAt;
         
         public Group(String groupId, String groupName, String creatorId) {
+            this(groupId, groupName, creatorId, new MembershipIndex());
+        }
+        
+        Group(String groupId, String groupName, String creatorId, MembershipIndex membership) {
             this.groupId = groupId;
             this.groupName = groupName;
             this.creatorId = creatorId;
-            this.members = new HashSet<>();
-            this.members.add(creatorId);
+            this.membership = membership;
+            this.membership.add(groupId, creatorId);
             this.createdAt = System.currentTimeMillis();
         }
         
-        public void addMember(String userId) {
-            members.add(userId);
+        public boolean addMember(String userId) {
+            return membership.add(groupId, userId);
         }
         
-        public void removeMember(String userId) {
-            members.remove(userId);
+        public boolean removeMember(String userId) {
+            return membership.remove(groupId, userId);
         }
         
         public boolean isMember(String userId) {
-            return members.contains(userId);
+            return membership.isMember(groupId, userId);
+        }
+        
+        public int getMemberCount() {
+            return membership.memberCount(groupId);
         }
         
         // getters
         public String getGroupId() { return groupId; }
         public String getGroupName() { return groupName; }
-        public Set<String> getMembers() { return members; }
+        /** 成员快照 */
+        public List<String> getMembers() { return membership.membersOf(groupId); }
+        /** 成员int快照（只读），扩散用 */
+        int[] getMemberIds() { return membership.memberIds(groupId); }
+        int memberIndex(String userId) { return membership.userIndex(userId); }
+        String memberName(int memberId) { return membership.userName(memberId); }
     }
     
     /**
      * 用户服务
+     * 
+     * 在线状态以 PresenceService 为准（心跳超时自动下线），User.online 只反映登录/登出。
      */
     static class UserService {
         private final Map<String, User> users = new ConcurrentHashMap<>();
-        private final Map<String, Set<String>> friends = new ConcurrentHashMap<>();
+        private final IdInterner userIds = new IdInterner();
+        private final FriendGraph friends = new FriendGraph(userIds);
+        private final PresenceService presence = new PresenceService(userIds, this::getFriends, 90_000, 1_000, 500);
         
         /**
          * 用户注册
@@ -140,9 +179,8 @@ public class IMSystemDesign {
             
             User user = new User(userId, username, password);
             users.put(userId, user);
-            friends.put(userId, new HashSet<>());
             
-            System.out.println("User registered: " + username);
+            log("User registered: " + username);
             return true;
         }
         
@@ -154,7 +192,8 @@ public class IMSystemDesign {
             if (user != null && user.password.equals(password)) {
                 user.setOnline(true);
                 user.setLastSeen(System.currentTimeMillis());
-                System.out.println("User logged in: " + user.getUsername());
+                presence.online(userId);
+                log("User logged in: " + user.getUsername());
                 return true;
             }
             return false;
@@ -168,10 +207,35 @@ public class IMSystemDesign {
             if (user != null) {
                 user.setOnline(false);
                 user.setLastSeen(System.currentTimeMillis());
-                System.out.println("User logged out: " + user.getUsername());
+                presence.offline(userId);
+                log("User logged out: " + user.getUsername());
             }
         }
         
+        /**
+         * 客户端心跳，超时未收到视为掉线
+         */
+        public void heartbeat(String userId) {
+            if (users.containsKey(userId)) {
+                presence.heartbeat(userId);
+            }
+        }
+        
+        /**
+         * 在线的好友：好友int数组直接批量查在线位图
+         */
+        public List<String> getOnlineFriends(String userId) {
+            return userIds.names(presence.onlineAmong(friends.friendIds(userId)));
+        }
+        
+        public PresenceService getPresence() {
+            return presence;
+        }
+        
+        IdInterner getUserIds() {
+            return userIds;
+        }
+        
         /**
          * 添加好友
          */
@@ -180,18 +244,40 @@ public class IMSystemDesign {
                 return false;
             }
             
-            friends.get(userId).add(friendId);
-            friends.get(friendId).add(userId);
+            if (!friends.addFriend(userId, friendId)) {
+                return false; // 已经是好友
+            }
             
-            System.out.println("Friends added: " + userId + " <-> " + friendId);
+            log("Friends added: " + userId + " <-> " + friendId);
             return true;
         }
         
         /**
-         * 获取好友列表
+         * 删除好友
          */
-        public Set<String> getFriends(String userId) {
-            return friends.getOrDefault(userId, new HashSet<>());
+        public boolean removeFriend(String userId, String friendId) {
+            return friends.removeFriend(userId, friendId);
+        }
+        
+        /**
+         * 获取好友列表（快照）
+         */
+        public List<String> getFriends(String userId) {
+            return friends.friendsOf(userId);
+        }
+        
+        /**
+         * 共同好友
+         */
+        public List<String> getMutualFriends(String userId, String otherId) {
+            return friends.mutualFriends(userId, otherId);
+        }
+        
+        /**
+         * 可能认识的人：好友的好友，按共同好友数排序
+         */
+        public List<String> suggestFriends(String userId, int limit) {
+            return friends.suggestFriends(userId, limit, 500);
         }
         
         /**
@@ -200,92 +286,500 @@ public class IMSystemDesign {
         public User getUser(String userId) {
             return users.get(userId);
         }
+        
+        /**
+         * 停止在线状态的定时线程
+         */
+        public void close() {
+            presence.close();
+        }
+    }
+    
+    /**
+     * 发送结果：重试的请求拿到的是第一次发送的结果
+     */
+    static class SendResult {
+        private final long messageId;
+        private final String conversationKey;
+        private final long seq;
+        private final boolean duplicate;
+        private final CompletableFuture<Integer> delivery;
+        
+        SendResult(long messageId, String conversationKey, long seq, boolean duplicate,
+                   CompletableFuture<Integer> delivery) {
+            this.messageId = messageId;
+            this.conversationKey = conversationKey;
+            this.seq = seq;
+            this.duplicate = duplicate;
+            this.delivery = delivery;
+        }
+        
+        public long getMessageId() { return messageId; }
+        public String getConversationKey() { return conversationKey; }
+        public long getSeq() { return seq; }
+        public boolean isDuplicate() { return duplicate; }
+        /** 扩散完成时完成，值为投递的收件箱数 */
+        CompletableFuture<Integer> getDelivery() { return delivery; }
+    }
+    
+    /**
+     * 同步响应：一次返回所有有新消息的会话
+     */
+    static class SyncResponse {
+        private final List<ConversationUpdate> updates = new ArrayList<>();
+        
+        void add(ConversationUpdate update) {
+            updates.add(update);
+        }
+        
+        public List<ConversationUpdate> getUpdates() { return updates; }
+        
+        public int getMessageCount() {
+            int count = 0;
+            for (ConversationUpdate update : updates) {
+                count += update.getMessages().size();
+            }
+            return count;
+        }
+        
+        /**
+         * 单个会话的增量
+         */
+        static class ConversationUpdate {
+            private final String conversationKey;
+            private final List<Message> messages;
+            private final long serverSeq;
+            
+            ConversationUpdate(String conversationKey, List<Message> messages, long serverSeq) {
+                this.conversationKey = conversationKey;
+                this.messages = messages;
+                this.serverSeq = serverSeq;
+            }
+            
+            public String getConversationKey() { return conversationKey; }
+            public List<Message> getMessages() { return messages; }
+            public long getServerSeq() { return serverSeq; }
+            
+            /**
+             * 超过单会话条数上限，客户端ack后再同步一次
+             */
+            public boolean hasMore() {
+                return !messages.isEmpty() && messages.get(messages.size() - 1).getSeq() < serverSeq;
+            }
+        }
     }
     
     /**
      * 消息服务
+     * 
+     * 每个会话（私聊 / 群）一个消息日志，消息只存一份；收件箱里只放 (会话ID, 序号) 指针，由FanoutEngine投递。
+     * 超大群走读扩散：不投递，成员接收时按读游标去群日志里拉。
+     * 
+     * 多端同步：每个设备按会话记录已确认的序号（游标），sync一次返回所有会话里游标之后的消息；
+     * 收件箱只是在线推送通道，消息本身始终以会话日志为准，设备断线重连不会丢。
+     * 
+     * 离线：收件箱内存里只留最近N条指针，更早的溢出到 OfflineStore，重连时 pullOffline 一次取回。
+     * 
+     * 可靠投递：客户端消息ID去重，接收方按会话批量ack，未确认的由 DeliveryTracker 在时间轮上驱动重传。
      */
-    static class MessageService {
-        private final Map<String, BlockingQueue<Message>> userMessageQueues = new ConcurrentHashMap<>();
-        private final Map<String, List<Message>> messageHistory = new ConcurrentHashMap<>();
-        private final Map<String, Set<String>> groupMembers = new ConcurrentHashMap<>();
+    static class MessageService implements AutoCloseable {
+        private final Map<String, FanoutEngine.Inbox> inboxes = new ConcurrentHashMap<>();
+        private final MessageLog.Registry conversations = new MessageLog.Registry();
+        // 读扩散群的读游标：userId -> (会话ID -> 已读到的序号)
+        private final Map<String, Map<Integer, Long>> readCursors = new ConcurrentHashMap<>();
+        // 当前走读扩散的群：会话ID -> 转成读扩散后第一条消息的序号（更早的已写扩散进收件箱）
+        private final Map<Integer, Long> readDiffusionFrom = new ConcurrentHashMap<>();
+        // 用户参与的私聊会话ID（群会话从群成员关系得到）
+        private final Map<String, Set<Integer>> userConversations = new ConcurrentHashMap<>();
+        // 设备游标："userId/deviceId" -> (会话ID -> 已确认序号)
+        private final Map<String, Map<Integer, Long>> deviceCursors = new ConcurrentHashMap<>();
+        private final GroupService groupService;
+        private final FanoutEngine fanout;
+        private final OfflineStore offlineStore;
+        private final int inboxCapacity;
+        private final MessageIdGenerator messageIds;
+        private final DeliveryTracker delivery;
+        
+        public MessageService(GroupService groupService) {
+            this(groupService, new FanoutEngine());
+        }
+        
+        public MessageService(GroupService groupService, FanoutEngine fanout) {
+            this(groupService, fanout, new OfflineStore(), 1000);
+        }
+        
+        /**
+         * @param offlineStore 收件箱溢出日志
+         * @param inboxCapacity 每个收件箱在内存里保留的最近消息数
+         */
+        public MessageService(GroupService groupService, FanoutEngine fanout, OfflineStore offlineStore,
+                              int inboxCapacity) {
+            this(groupService, fanout, offlineStore, inboxCapacity, new MessageIdGenerator(0));
+        }
+        
+        /**
+         * @param messageIds 本节点的消息ID生成器，多节点部署时各节点nodeId不同
+         */
+        public MessageService(GroupService groupService, FanoutEngine fanout, OfflineStore offlineStore,
+                              int inboxCapacity, MessageIdGenerator messageIds) {
+            this.groupService = groupService;
+            this.fanout = fanout;
+            this.offlineStore = offlineStore;
+            this.inboxCapacity = inboxCapacity;
+            this.messageIds = messageIds;
+            this.delivery = new DeliveryTracker(conversations::get,
+                (userId, pointer) -> fanout.deliver(pointer, userId, this::inboxOf));
+            groupService.setJoinListener(this::onMemberJoined);
+        }
         
         /**
          * 发送私聊消息
          */
         public boolean sendMessage(String senderId, String receiverId, String content, MessageType type) {
-            String messageId = UUID.randomUUID().toString();
-            Message message = new Message(messageId, senderId, receiverId, content, type);
-            
-            // 添加到接收者消息队列
-            userMessageQueues.computeIfAbsent(receiverId, k -> new LinkedBlockingQueue<>()).offer(message);
-            
-            // 保存到历史记录
-            String conversationKey = getConversationKey(senderId, receiverId);
-            messageHistory.computeIfAbsent(conversationKey, k -> new ArrayList<>()).add(message);
+            return sendMessage(senderId, DeliveryTracker.NO_CLIENT_ID, receiverId, content, type) != null;
+        }
+        
+        /**
+         * 发送私聊消息（可重试）
+         * 
+         * @param clientMsgId 发送者递增的客户端消息ID，重试时不变
+         * @return 发送结果；clientMsgId比去重窗口还旧时返回null
+         */
+        public SendResult sendMessage(String senderId, long clientMsgId, String receiverId, String content,
+                                      MessageType type) {
+            // 保存到会话日志，接收者收件箱只放指针
+            MessageLog log = conversations.getOrCreate(getConversationKey(senderId, receiverId));
+            SendResult result = appendOnce(senderId, clientMsgId, log,
+                () -> new Message(messageIds.nextId(), senderId, receiverId, content, type));
+            if (result == null || result.isDuplicate()) {
+                return result;
+            }
+            joinConversation(senderId, log.getConvId());
+            joinConversation(receiverId, log.getConvId());
+            CompletableFuture<Integer> delivered = fanout.deliver(FanoutEngine.pack(log.getConvId(), result.getSeq()),
+                receiverId, this::inboxOf).thenApply(v -> 1);
+            delivery.expect(receiverId, log.getConvId(), result.getSeq());
             
-            System.out.println("Message sent from " + senderId + " to " + receiverId + ": " + content);
-            return true;
+            log("Message sent from " + senderId + " to " + receiverId + ": " + content);
+            return new SendResult(result.getMessageId(), result.getConversationKey(), result.getSeq(), false, delivered);
         }
         
         /**
          * 发送群组消息
          */
         public boolean sendGroupMessage(String senderId, String groupId, String content, MessageType type) {
-            Set<String> members = groupMembers.get(groupId);
-            if (members == null || !members.contains(senderId)) {
+            if (sendGroupMessage(senderId, DeliveryTracker.NO_CLIENT_ID, groupId, content, type) == null) {
                 return false; // 群组不存在或用户不在群组中
             }
-            
-            String messageId = UUID.randomUUID().toString();
-            
-            // 向群组所有成员发送消息
-            for (String memberId : members) {
-                if (!memberId.equals(senderId)) { // 不给自己发送
-                    Message message = new Message(messageId, senderId, memberId, content, type);
-                    userMessageQueues.computeIfAbsent(memberId, k -> new LinkedBlockingQueue<>()).offer(message);
+            log("Group message sent from " + senderId + " to group " + groupId + ": " + content);
+            return true;
+        }
+        
+        /**
+         * 发送群组消息（可重试）：写入群日志并扩散
+         * 
+         * 结果里的扩散future在所有通道投递完成时完成（值为投递的收件箱数，读扩散和重复请求为0）
+         * 
+         * @return 发送结果；群不存在、发送者不在群里或clientMsgId比去重窗口还旧时返回null
+         */
+        public SendResult sendGroupMessage(String senderId, long clientMsgId, String groupId, String content,
+                                           MessageType type) {
+            Group group = groupService.getGroup(groupId);
+            if (group == null || !group.isMember(senderId)) {
+                return null;
+            }
+            MessageLog log = conversations.getOrCreate(groupKey(groupId));
+            SendResult result = appendOnce(senderId, clientMsgId, log,
+                () -> new Message(messageIds.nextId(), senderId, groupId, content, type));
+            if (result == null || result.isDuplicate()) {
+                return result;
+            }
+            if (fanout.isReadDiffusion(group.getMemberCount())) {
+                readDiffusionFrom.putIfAbsent(log.getConvId(), result.getSeq());
+                return result;
+            }
+            if (readDiffusionFrom.remove(log.getConvId()) != null) {
+                // 成员数降回阈值以下，恢复写扩散；读扩散期间的消息按读游标拉取，不在重传范围内
+                delivery.skipGroup(log.getConvId(), result.getSeq() - 1);
+            }
+            CompletableFuture<Integer> fanned = fanout.fanOut(FanoutEngine.pack(log.getConvId(), result.getSeq()),
+                group.getMemberIds(), group.memberIndex(senderId), group::memberName, this::inboxOf);
+            // 整个群一个检查点，到期时才逐个成员对比ack水位，发送路径上不按成员登记
+            delivery.expectGroup(log.getConvId(), result.getSeq(), group::getMembers);
+            return new SendResult(result.getMessageId(), result.getConversationKey(), result.getSeq(), false, fanned);
+        }
+        
+        /**
+         * 写入会话日志，同一发送者的同一客户端消息ID只写一次
+         */
+        private SendResult appendOnce(String senderId, long clientMsgId, MessageLog log,
+                                      Supplier<Message> factory) {
+            if (clientMsgId == DeliveryTracker.NO_CLIENT_ID) {
+                Message message = factory.get();
+                long seq = log.append(message);
+                return new SendResult(message.getMessageId(), log.getKey(), seq, false,
+                    CompletableFuture.completedFuture(0));
+            }
+            DeliveryTracker.SenderWindow window = delivery.window(senderId);
+            synchronized (window) {
+                long pointer = window.find(clientMsgId);
+                if (pointer == DeliveryTracker.SenderWindow.TOO_OLD) {
+                    return null;
+                }
+                if (pointer != DeliveryTracker.SenderWindow.NEW) {
+                    MessageLog original = conversations.get(FanoutEngine.convId(pointer));
+                    long seq = FanoutEngine.seq(pointer);
+                    return new SendResult(original.get(seq).getMessageId(), original.getKey(), seq, true,
+                        CompletableFuture.completedFuture(0));
                 }
+                Message message = factory.get();
+                long seq = log.append(message);
+                window.record(clientMsgId, FanoutEngine.pack(log.getConvId(), seq));
+                return new SendResult(message.getMessageId(), log.getKey(), seq, false,
+                    CompletableFuture.completedFuture(0));
             }
-            
-            // 保存到群组历史记录
-            String groupKey = "group:" + groupId;
-            Message groupMessage = new Message(messageId, senderId, groupId, content, type);
-            messageHistory.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(groupMessage);
-            
-            System.out.println("Group message sent from " + senderId + " to group " + groupId + ": " + content);
-            return true;
         }
         
         /**
-         * 接收消息
+         * 接收消息：先看读扩散的大群有没有新消息，再等收件箱
          */
         public Message receiveMessage(String userId) throws InterruptedException {
-            BlockingQueue<Message> queue = userMessageQueues.get(userId);
-            if (queue != null) {
-                Message message = queue.poll(1, TimeUnit.SECONDS);
-                if (message != null) {
-                    message.setDelivered(true);
-                    System.out.println("Message received by " + userId + ": " + message.getContent());
+            Message message = pullReadDiffusion(userId);
+            if (message == null) {
+                FanoutEngine.Inbox inbox = inboxOf(userId);
+                long pointer = inbox.poll(1000);
+                while (pointer >= 0 && isAcked(userId, pointer)) {
+                    pointer = inbox.poll(1000);  // 跳过已确认过的重传副本
+                }
+                if (pointer >= 0) {
+                    MessageLog log = conversations.get(FanoutEngine.convId(pointer));
+                    message = log.get(FanoutEngine.seq(pointer));
+                    // 老客户端不发ack，取走即视为送达，否则超时后会被重传
+                    acknowledge(userId, log, FanoutEngine.seq(pointer));
                 }
-                return message;
             }
-            return null;
+            if (message != null) {
+                log("Message received by " + userId + ": " + message.getContent());
+            }
+            return message;
+        }
+        
+        /**
+         * 重连后批量拉取离线期间收到的消息（含已溢出到磁盘的），按到达顺序
+         * 
+         * 超过保留期的离线消息不再返回，需要时用 sync 按会话补齐。拉取即确认，每个会话按最大序号ack一次。
+         */
+        public List<Message> pullOffline(String userId) {
+            long[] pointers = inboxOf(userId).drainAll();
+            List<Message> messages = new ArrayList<>(pointers.length);
+            Set<Long> seen = new HashSet<>();
+            Map<Integer, Long> received = new HashMap<>();
+            for (long pointer : pointers) {
+                // 重传可能让同一条在收件箱里出现多次
+                if (!isAcked(userId, pointer) && seen.add(pointer)) {
+                    int convId = FanoutEngine.convId(pointer);
+                    messages.add(conversations.get(convId).get(FanoutEngine.seq(pointer)));
+                    received.merge(convId, FanoutEngine.seq(pointer), Math::max);
+                }
+            }
+            for (Map.Entry<Integer, Long> entry : received.entrySet()) {
+                acknowledge(userId, conversations.get(entry.getKey()), entry.getValue());
+            }
+            return messages;
+        }
+        
+        /**
+         * 多端同步
+         * 
+         * 先应用客户端带上来的ack（上次同步收到的每个会话的最大序号），
+         * 再一遍扫完用户的所有会话，返回游标之后的消息。重连时一次请求补齐，不用逐条poll。
+         * 
+         * @param acks 会话键 -> 已确认序号，可以为空
+         * @param limitPerConversation 每个会话最多返回的条数
+         */
+        public SyncResponse sync(String userId, String deviceId, Map<String, Long> acks, int limitPerConversation) {
+            Map<Integer, Long> cursors = deviceCursors.computeIfAbsent(userId + "/" + deviceId,
+                k -> new ConcurrentHashMap<>());
+            if (acks != null) {
+                for (Map.Entry<String, Long> ack : acks.entrySet()) {
+                    MessageLog log = conversations.get(ack.getKey());
+                    if (log != null) {
+                        // 游标只前进，且不超过服务端已有的序号，否则之后的新消息会被当成已收到
+                        cursors.merge(log.getConvId(), Math.min(ack.getValue(), log.lastSeq()), Math::max);
+                        acknowledge(userId, log, ack.getValue());
+                    }
+                }
+            }
+            
+            SyncResponse response = new SyncResponse();
+            for (MessageLog log : conversationsOf(userId)) {
+                long cursor = cursors.getOrDefault(log.getConvId(), 0L);
+                long serverSeq = log.lastSeq();
+                if (serverSeq > cursor) {
+                    response.add(new SyncResponse.ConversationUpdate(log.getKey(),
+                        log.history(cursor + 1, limitPerConversation), serverSeq));
+                }
+            }
+            return response;
+        }
+        
+        /**
+         * 单独确认某个会话
+         */
+        public void ack(String userId, String deviceId, String conversationKey, long seq) {
+            MessageLog log = conversations.get(conversationKey);
+            if (log != null) {
+                deviceCursors.computeIfAbsent(userId + "/" + deviceId, k -> new ConcurrentHashMap<>())
+                    .merge(log.getConvId(), Math.min(seq, log.lastSeq()), Math::max);
+                acknowledge(userId, log, seq);
+            }
+        }
+        
+        /**
+         * 批量确认送达：该会话序号 upToSeq 及之前的消息都已收到，停止重传
+         */
+        public void ackDelivered(String userId, String conversationKey, long upToSeq) {
+            MessageLog log = conversations.get(conversationKey);
+            if (log != null) {
+                acknowledge(userId, log, upToSeq);
+            }
+        }
+        
+        /**
+         * 发送方查询私聊的送达水位：序号不超过返回值的消息对方都已确认
+         */
+        public long getDeliveredSeq(String senderId, String receiverId) {
+            MessageLog log = conversations.get(getConversationKey(senderId, receiverId));
+            return log == null ? 0 : delivery.ackedSeq(receiverId, log.getConvId());
+        }
+        
+        public DeliveryTracker getDeliveryTracker() {
+            return delivery;
+        }
+        
+        /**
+         * 接入在线状态：离线用户不重传，消息留在收件箱等上线后拉取
+         */
+        void setOnlineCheck(Predicate<String> online) {
+            delivery.setOnlineCheck(online);
         }
         
         /**
          * 获取消息历史
          */
         public List<Message> getMessageHistory(String userId1, String userId2) {
-            String conversationKey = getConversationKey(userId1, userId2);
-            return messageHistory.getOrDefault(conversationKey, new ArrayList<>());
+            return history(getConversationKey(userId1, userId2), 1, Integer.MAX_VALUE);
         }
         
         /**
          * 获取群组消息历史
          */
         public List<Message> getGroupMessageHistory(String groupId) {
-            String groupKey = "group:" + groupId;
-            return messageHistory.getOrDefault(groupKey, new ArrayList<>());
+            return history(groupKey(groupId), 1, Integer.MAX_VALUE);
+        }
+        
+        /**
+         * 分页读取会话历史
+         * 
+         * @param conversationKey 私聊为 "小ID:大ID"，群聊为 "group:群ID"
+         * @param fromSeq 起始序号（含），从1开始
+         * @param limit 最多条数
+         */
+        public List<Message> history(String conversationKey, long fromSeq, int limit) {
+            MessageLog log = conversations.get(conversationKey);
+            return log == null ? new ArrayList<>() : log.history(fromSeq, limit);
+        }
+        
+        FanoutEngine getFanoutEngine() {
+            return fanout;
+        }
+        
+        /**
+         * 停止重传定时线程和扩散通道，删除离线溢出段
+         */
+        @Override
+        public void close() {
+            delivery.close();
+            fanout.close();
+            offlineStore.close();
+        }
+        
+        /**
+         * 新成员入群：读游标和送达水位定位到群日志当前末尾，不回放入群前的历史（需要时用history翻）
+         */
+        private void onMemberJoined(String groupId, String userId) {
+            MessageLog log = conversations.get(groupKey(groupId));
+            if (log != null) {
+                readCursors.computeIfAbsent(userId, k -> new ConcurrentHashMap<>()).put(log.getConvId(), log.lastSeq());
+                delivery.ack(userId, log.getConvId(), log.lastSeq());
+            }
+        }
+        
+        /**
+         * 读扩散：按读游标从大群日志里取下一条别人发的消息
+         */
+        private Message pullReadDiffusion(String userId) {
+            for (Group group : groupService.getUserGroups(userId)) {
+                MessageLog log = conversations.get(groupKey(group.getGroupId()));
+                Long from = log == null ? null : readDiffusionFrom.get(log.getConvId());
+                if (from == null) {
+                    continue;  // 写扩散的群，消息都在收件箱里
+                }
+                Map<Integer, Long> cursors = readCursors.computeIfAbsent(userId, k -> new ConcurrentHashMap<>());
+                // 转成读扩散之前的消息已经写扩散过，游标至少从转换点开始
+                long cursor = Math.max(cursors.getOrDefault(log.getConvId(), 0L), from - 1);
+                while (cursor < log.lastSeq()) {  // lastSeq是可读水位，之前的都已写完
+                    Message message = log.get(++cursor);
+                    cursors.put(log.getConvId(), cursor);
+                    if (!message.getSenderId().equals(userId)) {
+                        return message;
+                    }
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * 送达状态只记在水位里；超过服务端最新序号的部分截掉，不能提前确认还没发出的消息
+         */
+        private void acknowledge(String userId, MessageLog log, long upToSeq) {
+            delivery.ack(userId, log.getConvId(), Math.min(upToSeq, log.lastSeq()));
+        }
+        
+        private boolean isAcked(String userId, long pointer) {
+            return FanoutEngine.seq(pointer) <= delivery.ackedSeq(userId, FanoutEngine.convId(pointer));
+        }
+        
+        /**
+         * 用户参与的全部会话：私聊 + 所在群
+         */
+        private List<MessageLog> conversationsOf(String userId) {
+            List<MessageLog> logs = new ArrayList<>();
+            for (int convId : userConversations.getOrDefault(userId, Collections.emptySet())) {
+                logs.add(conversations.get(convId));
+            }
+            for (Group group : groupService.getUserGroups(userId)) {
+                MessageLog log = conversations.get(groupKey(group.getGroupId()));
+                if (log != null) {
+                    logs.add(log);
+                }
+            }
+            return logs;
+        }
+        
+        private void joinConversation(String userId, int convId) {
+            Set<Integer> convIds = userConversations.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet());
+            if (!convIds.contains(convId)) {
+                convIds.add(convId);
+            }
+        }
+        
+        private FanoutEngine.Inbox inboxOf(String userId) {
+            return inboxes.computeIfAbsent(userId, k -> new FanoutEngine.Inbox(inboxCapacity, offlineStore));
+        }
+        
+        private static String groupKey(String groupId) {
+            return "group:" + groupId;
         }
         
         private String getConversationKey(String userId1, String userId2) {
@@ -300,16 +794,36 @@ public class IMSystemDesign {
      */
     static class GroupService {
         private final Map<String, Group> groups = new ConcurrentHashMap<>();
+        private final MembershipIndex membership;
+        private volatile BiConsumer<String, String> joinListener = (groupId, userId) -> { };
+        
+        public GroupService() {
+            this(new IdInterner());
+        }
+        
+        /**
+         * @param userIds 用户ID驻留表，传 UserService 的那一份，成员索引和好友、在线状态用同一套int
+         */
+        GroupService(IdInterner userIds) {
+            this.membership = new MembershipIndex(userIds);
+        }
+        
+        /**
+         * 成员入群回调 (groupId, userId)，消息服务用来初始化读游标
+         */
+        void setJoinListener(BiConsumer<String, String> joinListener) {
+            this.joinListener = joinListener;
+        }
         
         /**
          * 创建群组
          */
         public String createGroup(String groupName, String creatorId) {
             String groupId = UUID.randomUUID().toString();
-            Group group = new Group(groupId, groupName, creatorId);
+            Group group = new Group(groupId, groupName, creatorId, membership);
             groups.put(groupId, group);
             
-            System.out.println("Group created: " + groupName + " by " + creatorId);
+            log("Group created: " + groupName + " by " + creatorId);
             return groupId;
         }
         
@@ -319,8 +833,10 @@ public class IMSystemDesign {
         public boolean joinGroup(String groupId, String userId) {
             Group group = groups.get(groupId);
             if (group != null) {
-                group.addMember(userId);
-                System.out.println("User " + userId + " joined group " + group.getGroupName());
+                if (group.addMember(userId)) {
+                    joinListener.accept(groupId, userId);
+                }
+                log("User " + userId + " joined group " + group.getGroupName());
                 return true;
             }
             return false;
@@ -331,9 +847,8 @@ public class IMSystemDesign {
          */
         public boolean leaveGroup(String groupId, String userId) {
             Group group = groups.get(groupId);
-            if (group != null && group.isMember(userId)) {
-                group.removeMember(userId);
-                System.out.println("User " + userId + " left group " + group.getGroupName());
+            if (group != null && group.removeMember(userId)) {
+                log("User " + userId + " left group " + group.getGroupName());
                 return true;
             }
             return false;
@@ -347,27 +862,42 @@ public class IMSystemDesign {
         }
         
         /**
-         * 获取用户加入的群组
+         * 获取用户加入的群组：查倒排索引，O(用户所在群数)
          */
         public List<Group> getUserGroups(String userId) {
-            return groups.values().stream()
-                .filter(group -> group.isMember(userId))
-                .collect(java.util.stream.Collectors.toList());
+            List<Group> result = new ArrayList<>();
+            for (String groupId : membership.groupsOf(userId)) {
+                Group group = groups.get(groupId);
+                if (group != null) {
+                    result.add(group);
+                }
+            }
+            return result;
         }
     }
     
     /**
      * IM系统主类
      */
-    static class IMSystem {
+    static class IMSystem implements AutoCloseable {
         private final UserService userService;
         private final MessageService messageService;
         private final GroupService groupService;
         
         public IMSystem() {
             this.userService = new UserService();
-            this.messageService = new MessageService();
-            this.groupService = new GroupService();
+            this.groupService = new GroupService(userService.getUserIds());
+            this.messageService = new MessageService(groupService);
+            messageService.setOnlineCheck(userService.getPresence()::isOnline);
+        }
+        
+        /**
+         * 停止在线状态、重传、扩散的后台线程
+         */
+        @Override
+        public void close() {
+            messageService.close();
+            userService.close();
         }
         
         /**
@@ -388,6 +918,11 @@ public class IMSystemDesign {
             // 2. 添加好友
             userService.addFriend("user1", "user2");
             userService.addFriend("user1", "user3");
+            System.out.println("user2 可能认识: " + userService.suggestFriends("user2", 5)
+                + "，user2和user3的共同好友: " + userService.getMutualFriends("user2", "user3"));
+            userService.getPresence().subscribe("user1",
+                (watcher, changes) -> System.out.println("Presence pushed to " + watcher + ": " + changes));
+            System.out.println("Online friends of user1: " + userService.getOnlineFriends("user1"));
             
             // 3. 发送私聊消息
             messageService.sendMessage("user1", "user2", "Hello Bob!", MessageType.TEXT);
@@ -409,21 +944,45 @@ public class IMSystemDesign {
             messageService.receiveMessage("user2");
             messageService.receiveMessage("user3");
             
-            // 7. 查看消息历史
+            // 7. 多端同步：user2的手机和电脑各自按游标同步
+            SyncResponse phone = messageService.sync("user2", "phone", null, 100);
+            System.out.println("\nuser2/phone 同步到 " + phone.getMessageCount() + " 条消息");
+            Map<String, Long> acks = new HashMap<>();
+            for (SyncResponse.ConversationUpdate update : phone.getUpdates()) {
+                acks.put(update.getConversationKey(), update.getServerSeq());
+            }
+            messageService.sendMessage("user1", "user2", "Are you there?", MessageType.TEXT);
+            System.out.println("user2/phone 增量同步 " + messageService.sync("user2", "phone", acks, 100).getMessageCount()
+                + " 条，user2/pc 首次同步 " + messageService.sync("user2", "pc", null, 100).getMessageCount() + " 条");
+            
+            // 8. user3重连，批量拉取离线消息
+            messageService.sendGroupMessage("user1", groupId, "Anyone online?", MessageType.TEXT);
+            Thread.sleep(100);
+            System.out.println("user3 重连拉取离线消息 " + messageService.pullOffline("user3").size() + " 条");
+            
+            // 9. 客户端重试：同一客户端消息ID只写一次；接收方批量确认后发送方看到送达水位
+            SendResult first = messageService.sendMessage("user3", 1L, "user1", "Ping", MessageType.TEXT);
+            SendResult retry = messageService.sendMessage("user3", 1L, "user1", "Ping", MessageType.TEXT);
+            System.out.println("重试去重: " + retry.isDuplicate() + "，消息ID相同: "
+                + (first.getMessageId() == retry.getMessageId()));
+            messageService.ackDelivered("user1", first.getConversationKey(), first.getSeq());
+            System.out.println("user3 -> user1 送达水位: " + messageService.getDeliveredSeq("user3", "user1"));
+            
+            // 10. 查看消息历史
             System.out.println("\n=== Message History ===");
             List<Message> history = messageService.getMessageHistory("user1", "user2");
             for (Message msg : history) {
                 System.out.println("[" + msg.getTimestamp() + "] " + msg.getSenderId() + ": " + msg.getContent());
             }
             
-            // 8. 查看群组消息历史
+            // 11. 查看群组消息历史
             System.out.println("\n=== Group Message History ===");
             List<Message> groupHistory = messageService.getGroupMessageHistory(groupId);
             for (Message msg : groupHistory) {
                 System.out.println("[" + msg.getTimestamp() + "] " + msg.getSenderId() + " (Group): " + msg.getContent());
             }
             
-            // 9. 用户登出
+            // 12. 用户登出
             userService.logout("user1");
             userService.logout("user2");
             userService.logout("user3");
@@ -431,7 +990,8 @@ public class IMSystemDesign {
     }
     
     public static void main(String[] args) throws InterruptedException {
-        IMSystem imSystem = new IMSystem();
-        imSystem.runDemo();
+        try (IMSystem imSystem = new IMSystem()) {
+            imSystem.runDemo();
+        }
     }
 }
@@ -0,0 +1,56 @@
+package com.interview.systemdesign.im;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 字符串ID -> 连续int
+ *
+ * 成员索引、在线状态位图、好友关系都按int存，同一个用户在各处是同一个int，
+ * 可以直接拿好友的int数组去位图里查在线状态，不用再查一遍字符串。
+ */
+class IdInterner {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final PagedArray<String> names = new PagedArray<>();
+
+    int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(name, key -> {
+            int assigned = next.getAndIncrement();
+            names.set(assigned, key);  // 先登记名字再发布ID，拿到ID就一定能反查
+            return assigned;
+        });
+    }
+
+    /**
+     * @return 未驻留过返回-1
+     */
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String name(int id) {
+        return names.get(id);
+    }
+
+    List<String> names(int[] idSet) {
+        List<String> result = new ArrayList<>(idSet.length);
+        for (int id : idSet) {
+            result.add(names.get(id));
+        }
+        return result;
+    }
+
+    int size() {
+        return next.get();
+    }
+}
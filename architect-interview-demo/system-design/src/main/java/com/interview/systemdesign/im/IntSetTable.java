@@ -0,0 +1,65 @@
+package com.interview.systemdesign.im;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * int下标 -> 有序int集合
+ *
+ * 每个集合是有序int[]，写时复制后CAS替换：读只是一次volatile读（+ 二分查找），不加锁；
+ * 写不阻塞读，同一集合的并发写CAS失败重试。适合读远多于写的关系数据（群成员、好友）。
+ */
+class IntSetTable {
+
+    static final int[] EMPTY = new int[0];
+
+    private final PagedArray<int[]> sets = new PagedArray<>();
+
+    int[] get(int key) {
+        int[] set = sets.get(key);
+        return set == null ? EMPTY : set;
+    }
+
+    boolean contains(int key, int value) {
+        return Arrays.binarySearch(get(key), value) >= 0;
+    }
+
+    boolean add(int key, int value) {
+        AtomicReferenceArray<int[]> page = sets.page(key);
+        int slot = PagedArray.slot(key);
+        while (true) {
+            int[] current = page.get(slot);
+            int[] set = current == null ? EMPTY : current;
+            int pos = Arrays.binarySearch(set, value);
+            if (pos >= 0) {
+                return false;
+            }
+            int insertAt = -pos - 1;
+            int[] updated = new int[set.length + 1];
+            System.arraycopy(set, 0, updated, 0, insertAt);
+            updated[insertAt] = value;
+            System.arraycopy(set, insertAt, updated, insertAt + 1, set.length - insertAt);
+            if (page.compareAndSet(slot, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    boolean remove(int key, int value) {
+        AtomicReferenceArray<int[]> page = sets.page(key);
+        int slot = PagedArray.slot(key);
+        while (true) {
+            int[] current = page.get(slot);
+            int pos = current == null ? -1 : Arrays.binarySearch(current, value);
+            if (pos < 0) {
+                return false;
+            }
+            int[] updated = new int[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, pos);
+            System.arraycopy(current, pos + 1, updated, pos, updated.length - pos);
+            if (page.compareAndSet(slot, current, updated)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.interview.systemdesign.im;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 群成员双向索引：用户 -> 所在群，群 -> 成员
+ *
+ * 问题：
+ * 1. getUserGroups 遍历系统里所有群逐个判断 isMember，每次调用 O(群总数)
+ * 2. Group.members 是 HashSet，并发加群/退群不安全，遍历时还可能抛 ConcurrentModificationException
+ *
+ * 方案：
+ * 1. 用户ID、群ID各自驻留成连续的int，集合里只存int
+ * 2. 每个集合是有序int[]，写时复制（COW）+ CAS替换，读只是一次volatile读 + 二分查找，不加锁
+ * 3. 两个方向各一张表，按int下标分页存放，查询 O(度数)
+ *
+ * 加群时先写群 -> 成员，再写用户 -> 群；并发读可能短暂只看到一侧，不会看到不存在的关系。
+ * 同一 (群, 用户) 的加入和退出按条带锁串行，两个方向一起写完，不会一边成功一边落空留下单向关系；
+ * 不同的 (群, 用户) 落在不同条带上互不影响，读不加锁。
+ */
+public class MembershipIndex {
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final IdInterner users;
+    private final IdInterner groups = new IdInterner();
+    private final IntSetTable groupToMembers = new IntSetTable();
+    private final IntSetTable userToGroups = new IntSetTable();
+    private final Object[] writeLocks = new Object[LOCK_STRIPES];
+
+    public MembershipIndex() {
+        this(new IdInterner());
+    }
+
+    /**
+     * @param users 用户ID驻留表，和在线状态、好友关系共用同一套int
+     */
+    MembershipIndex(IdInterner users) {
+        this.users = users;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return false 表示已经是成员
+     */
+    public boolean add(String groupId, String userId) {
+        int group = groups.intern(groupId);
+        int user = users.intern(userId);
+        synchronized (lockFor(group, user)) {
+            if (!groupToMembers.add(group, user)) {
+                return false;
+            }
+            userToGroups.add(user, group);
+            return true;
+        }
+    }
+
+    /**
+     * @return false 表示本来就不是成员
+     */
+    public boolean remove(String groupId, String userId) {
+        int group = groups.find(groupId);
+        int user = users.find(userId);
+        if (group < 0 || user < 0) {
+            return false;
+        }
+        synchronized (lockFor(group, user)) {
+            if (!groupToMembers.remove(group, user)) {
+                return false;
+            }
+            userToGroups.remove(user, group);
+            return true;
+        }
+    }
+
+    public boolean isMember(String groupId, String userId) {
+        int group = groups.find(groupId);
+        int user = users.find(userId);
+        return group >= 0 && user >= 0 && groupToMembers.contains(group, user);
+    }
+
+    public int memberCount(String groupId) {
+        int group = groups.find(groupId);
+        return group < 0 ? 0 : groupToMembers.get(group).length;
+    }
+
+    /**
+     * 群成员快照
+     */
+    public List<String> membersOf(String groupId) {
+        int group = groups.find(groupId);
+        return group < 0 ? new ArrayList<>() : users.names(groupToMembers.get(group));
+    }
+
+    /**
+     * 群成员的int快照（只读，不要修改），扩散时不用先转成字符串列表
+     */
+    int[] memberIds(String groupId) {
+        int group = groups.find(groupId);
+        return group < 0 ? IntSetTable.EMPTY : groupToMembers.get(group);
+    }
+
+    /**
+     * 用户ID对应的int，没有登记过返回-1
+     */
+    int userIndex(String userId) {
+        return users.find(userId);
+    }
+
+    String userName(int user) {
+        return users.name(user);
+    }
+
+    /**
+     * 用户所在群的快照
+     */
+    public List<String> groupsOf(String userId) {
+        int user = users.find(userId);
+        return user < 0 ? new ArrayList<>() : groups.names(userToGroups.get(user));
+    }
+
+    private Object lockFor(int group, int user) {
+        int h = group * 0x9E3779B9 ^ user;
+        return writeLocks[(h ^ h >>> 16) & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,61 @@
+package com.interview.systemdesign.im;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息ID生成器（雪花算法变体）
+ *
+ * 问题：
+ * UUID.randomUUID() 走SecureRandom，每条消息一个36字符的String，而且和时间无关，不能按ID排序。
+ *
+ * 方案：
+ * 1. 64位：[41位毫秒时间戳（相对起始时间）][10位节点ID][12位序号]，同一节点内严格递增，跨节点按时间大致有序
+ * 2. 时间戳和序号合在一个AtomicLong里CAS推进，不加锁
+ * 3. 一毫秒内序号用完或时钟回拨时不等待、不抛异常，直接借用下一毫秒（逻辑时钟），
+ *    时钟追上来后自然恢复
+ */
+public class MessageIdGenerator {
+
+    // 起始时间戳（2024-01-01 00:00:00）
+    private static final long START_TIMESTAMP = 1704038400000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    private final long nodeBits;
+    // [相对时间戳][序号]，不含节点ID
+    private final AtomicLong state = new AtomicLong();
+
+    public MessageIdGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("node id must be in [0, " + MAX_NODE_ID + "]");
+        }
+        this.nodeBits = nodeId << SEQUENCE_BITS;
+    }
+
+    public long nextId() {
+        long now = (System.currentTimeMillis() - START_TIMESTAMP) << SEQUENCE_BITS;
+        while (true) {
+            long current = state.get();
+            // 时钟前进了从新的毫秒开始，否则在上一个值上加1（序号溢出自动进位到下一毫秒）
+            long next = now > current ? now : current + 1;
+            if (state.compareAndSet(current, next)) {
+                return (next >>> SEQUENCE_BITS) << TIMESTAMP_SHIFT | nodeBits | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * ID里的毫秒时间戳
+     */
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + START_TIMESTAMP;
+    }
+
+    public static long nodeOf(long id) {
+        return (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+}
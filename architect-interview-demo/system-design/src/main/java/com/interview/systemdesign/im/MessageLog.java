@@ -0,0 +1,348 @@
+package com.interview.systemdesign.im;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 单个会话（私聊 / 群聊）的只追加消息日志
+ *
+ * 消息只存一份，收件箱里只放 (会话ID, 序号) 指针。
+ *
+ * 问题：
+ * 原来的历史是 ConcurrentHashMap 里的 ArrayList，并发add不安全，取历史只能整表返回。
+ *
+ * 方案：
+ * 1. 序号由 AtomicLong 自增分配（从1开始），消息写入按1024条分段的槽位数组，追加不加锁
+ *    （只有每1024条新建一个分段时进一次锁）
+ * 2. 可读水位：并发追加可能乱序写完，水位只推进到连续写完的最大序号，读者不会看到空洞
+ * 3. 分页读取 history(fromSeq, limit)
+ * 4. 分层：热分段超过上限后，最老的分段编码成紧凑字节，放到堆外内存（ColdTier），
+ *    堆上只剩偏移数组，读的时候再解码
+ */
+class MessageLog {
+
+    static final int SEGMENT_BITS = 10;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final int convId;
+    private final String key;
+    private final ColdTier coldTier;
+    private final int hotSegmentLimit;
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicBoolean tiering = new AtomicBoolean();
+    private volatile AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<>(4);
+    private volatile int coldSegments;  // 已下沉的分段数，只在tiering持有者里修改
+
+    MessageLog(int convId, String key, ColdTier coldTier, int hotSegmentLimit) {
+        this.convId = convId;
+        this.key = key;
+        this.coldTier = coldTier;
+        this.hotSegmentLimit = hotSegmentLimit;
+    }
+
+    /**
+     * @return 会话内序号
+     */
+    long append(IMSystemDesign.Message message) {
+        long seq = nextSeq.incrementAndGet();
+        if (seq > FanoutEngine.SEQ_MASK) {
+            throw new IllegalStateException("conversation full: " + key);  // 序号超出指针位宽
+        }
+        message.setSeq(seq);
+        HotSegment segment = (HotSegment) segmentFor(seq - 1);
+        segment.slots.setRelease((int) ((seq - 1) & SEGMENT_MASK), message);
+        advancePublished();
+        if (published.get() - (long) coldSegments * SEGMENT_SIZE > (long) (hotSegmentLimit + 1) * SEGMENT_SIZE) {
+            tierOldest();
+        }
+        return seq;
+    }
+
+    /**
+     * @return 指定序号的消息，不存在或尚未可读返回null
+     */
+    IMSystemDesign.Message get(long seq) {
+        if (seq < 1 || seq > published.get()) {
+            return null;
+        }
+        int index = (int) ((seq - 1) >>> SEGMENT_BITS);
+        return segments.get(index).get((int) ((seq - 1) & SEGMENT_MASK));
+    }
+
+    /**
+     * 可读水位：1..lastSeq 全部可读
+     */
+    long lastSeq() {
+        return published.get();
+    }
+
+    /**
+     * 分页读取
+     *
+     * @param fromSeq 起始序号（含）
+     * @param limit 最多条数
+     */
+    List<IMSystemDesign.Message> history(long fromSeq, int limit) {
+        long from = Math.max(1, fromSeq);
+        long to = Math.min(published.get(), from + limit - 1);
+        List<IMSystemDesign.Message> result = new ArrayList<>((int) Math.max(0, to - from + 1));
+        for (long seq = from; seq <= to; seq++) {
+            result.add(get(seq));
+        }
+        return result;
+    }
+
+    int getConvId() {
+        return convId;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * 已下沉到冷存储的分段数
+     */
+    int getColdSegmentCount() {
+        return coldSegments;
+    }
+
+    /**
+     * 把水位推进到连续写完的最大序号（任何追加者都可以帮忙推进）
+     */
+    private void advancePublished() {
+        while (true) {
+            long current = published.get();
+            long next = current + 1;
+            if (next > nextSeq.get()) {
+                return;
+            }
+            AtomicReferenceArray<Segment> array = segments;
+            int index = (int) ((next - 1) >>> SEGMENT_BITS);
+            Segment segment = index < array.length() ? array.get(index) : null;
+            if (segment == null || segment.get((int) ((next - 1) & SEGMENT_MASK)) == null) {
+                return;  // 前面还有没写完的，由它的追加者推进
+            }
+            published.compareAndSet(current, next);
+        }
+    }
+
+    private Segment segmentFor(long index) {
+        int segmentIndex = (int) (index >>> SEGMENT_BITS);
+        AtomicReferenceArray<Segment> current = segments;
+        if (segmentIndex < current.length()) {
+            Segment segment = current.get(segmentIndex);
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return createSegment(segmentIndex);
+    }
+
+    private synchronized Segment createSegment(int segmentIndex) {
+        AtomicReferenceArray<Segment> current = segments;
+        if (segmentIndex >= current.length()) {
+            AtomicReferenceArray<Segment> grown = new AtomicReferenceArray<>(
+                Math.max(current.length() << 1, segmentIndex + 1));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            segments = grown;
+            current = grown;
+        }
+        Segment segment = current.get(segmentIndex);
+        if (segment == null) {
+            segment = new HotSegment();
+            current.set(segmentIndex, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * 把最老的热分段下沉到冷存储（同一时间只有一个线程做）
+     */
+    private void tierOldest() {
+        if (!tiering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int index = coldSegments;
+            HotSegment hot = (HotSegment) segments.get(index);
+            ColdSegment cold = ColdSegment.encode(hot, (long) index << SEGMENT_BITS, coldTier);
+            replaceSegment(index, cold);
+            coldSegments = index + 1;
+        } finally {
+            tiering.set(false);
+        }
+    }
+
+    /**
+     * 和扩容用同一把锁，避免替换写到扩容前的旧数组里
+     */
+    private synchronized void replaceSegment(int index, Segment segment) {
+        segments.set(index, segment);
+    }
+
+    private abstract static class Segment {
+        abstract IMSystemDesign.Message get(int slot);
+    }
+
+    private static final class HotSegment extends Segment {
+        final AtomicReferenceArray<IMSystemDesign.Message> slots = new AtomicReferenceArray<>(SEGMENT_SIZE);
+
+        @Override
+        IMSystemDesign.Message get(int slot) {
+            return slots.getAcquire(slot);
+        }
+    }
+
+    /**
+     * 冷分段：消息编码后放在堆外/映射内存，堆上只有偏移数组
+     *
+     * 编码：[messageId long][senderId][receiverId][content]（int长度 + UTF-8）[type byte][timestamp long]
+     */
+    private static final class ColdSegment extends Segment {
+        private final ByteBuffer data;
+        private final int[] offsets;
+        private final long baseSeq;
+
+        private ColdSegment(ByteBuffer data, int[] offsets, long baseSeq) {
+            this.data = data;
+            this.offsets = offsets;
+            this.baseSeq = baseSeq;
+        }
+
+        static ColdSegment encode(HotSegment hot, long baseSeq, ColdTier tier) {
+            List<byte[]> parts = new ArrayList<>(SEGMENT_SIZE * 3);
+            int size = 0;
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                IMSystemDesign.Message message = hot.get(i);
+                for (String field : new String[] {message.getSenderId(),
+                        message.getReceiverId(), message.getContent()}) {
+                    byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                    parts.add(bytes);
+                    size += 4 + bytes.length;
+                }
+                size += 8 + 1 + 8;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            int[] offsets = new int[SEGMENT_SIZE];
+            int part = 0;
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                IMSystemDesign.Message message = hot.get(i);
+                offsets[i] = buffer.position();
+                buffer.putLong(message.getMessageId());
+                for (int f = 0; f < 3; f++) {
+                    byte[] bytes = parts.get(part++);
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                }
+                buffer.put((byte) message.getType().ordinal());
+                buffer.putLong(message.getTimestamp());
+            }
+            buffer.flip();
+            return new ColdSegment(tier.store(buffer), offsets, baseSeq);
+        }
+
+        @Override
+        IMSystemDesign.Message get(int slot) {
+            ByteBuffer buffer = data.duplicate();
+            buffer.position(offsets[slot]);
+            long messageId = buffer.getLong();
+            String senderId = readString(buffer);
+            String receiverId = readString(buffer);
+            String content = readString(buffer);
+            IMSystemDesign.MessageType type = IMSystemDesign.MessageType.values()[buffer.get()];
+            long timestamp = buffer.getLong();
+            IMSystemDesign.Message message = new IMSystemDesign.Message(
+                messageId, senderId, receiverId, content, type, timestamp);
+            message.setSeq(baseSeq + slot + 1);
+            return message;
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 冷存储层：接收编码好的分段，返回只读视图
+     */
+    interface ColdTier {
+        ByteBuffer store(ByteBuffer encoded);
+
+        /**
+         * 堆外内存
+         */
+        ColdTier OFF_HEAP = encoded -> {
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.remaining());
+            direct.put(encoded).flip();
+            return direct.asReadOnlyBuffer();
+        };
+    }
+
+    /**
+     * 会话注册表：会话键 -> 日志，会话ID -> 日志
+     *
+     * 会话ID从0连续分配，按ID查直接数组下标。
+     */
+    static class Registry {
+        private final Map<String, MessageLog> byKey = new ConcurrentHashMap<>();
+        private final ColdTier coldTier;
+        private final int hotSegmentLimit;
+        private final PagedArray<MessageLog> byId = new PagedArray<>();  // 按页增长，会话再多也不整体拷贝
+        private int nextId;
+
+        Registry() {
+            this(ColdTier.OFF_HEAP, 4);
+        }
+
+        /**
+         * @param coldTier 冷分段存放位置
+         * @param hotSegmentLimit 每个会话在堆上保留的热分段数（每段1024条）
+         */
+        Registry(ColdTier coldTier, int hotSegmentLimit) {
+            this.coldTier = coldTier;
+            this.hotSegmentLimit = hotSegmentLimit;
+        }
+
+        MessageLog getOrCreate(String key) {
+            MessageLog log = byKey.get(key);
+            return log != null ? log : create(key);
+        }
+
+        MessageLog get(String key) {
+            return byKey.get(key);
+        }
+
+        MessageLog get(int convId) {
+            return convId < 0 ? null : byId.get(convId);
+        }
+
+        private synchronized MessageLog create(String key) {
+            MessageLog log = byKey.get(key);
+            if (log != null) {
+                return log;
+            }
+            int convId = nextId++;
+            if (convId >= FanoutEngine.MAX_CONVERSATIONS) {
+                throw new IllegalStateException("too many conversations");
+            }
+            log = new MessageLog(convId, key, coldTier, hotSegmentLimit);
+            byId.set(convId, log);  // 先发布到按ID查的数组，再放进按键查的Map
+            byKey.put(key, log);
+            return log;
+        }
+    }
+}
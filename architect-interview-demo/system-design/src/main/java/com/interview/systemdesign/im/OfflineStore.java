@@ -0,0 +1,267 @@
+package com.interview.systemdesign.im;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 离线收件箱的溢出日志
+ *
+ * 问题：
+ * 用户离线一周，活跃群里的消息指针在收件箱里无限堆积，内存随离线时长线性增长。
+ *
+ * 方案：
+ * 1. 收件箱只在内存里保留最近N条，更早的溢出到这里，所有用户共用一个追加日志
+ * 2. 每条记录24字节 [消息指针][同一用户上一条溢出记录的地址][溢出时间]，
+ *    用户只需在内存里记链表头，不需要按用户建索引
+ * 3. 日志按固定大小分段，默认是mmap文件：冷段的页可以被操作系统换出，不占堆也不常驻内存；
+ *    重连时顺着链表一次读回
+ * 4. 保留期按段整体回收：最后写入时间早于保留期的段直接删除，链表读到已删除的段或过期记录就停止，
+ *    后台定时清理，不依赖写满换段
+ *
+ * 被拉取过的记录不单独删除，随所在的段一起过期回收。
+ *
+ * 这里只是给内存减负，不是持久化：链表头在收件箱里，记录指向的消息在内存日志里，进程重启后
+ * 旧段文件无从引用。打开目录时先删掉上次留下的段文件，新段从0编号也不会和旧数据混在一起。
+ */
+public class OfflineStore implements AutoCloseable {
+
+    static final long NONE = -1;
+    static final int RECORD_BYTES = 24;
+
+    private static final long PURGE_INTERVAL_MILLIS = 60_000;
+
+    private final Path directory;
+    private final boolean ownsDirectory;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final LongAdder spilled = new LongAdder();
+    private final ScheduledExecutorService purger;
+    private Segment active;
+
+    /**
+     * 临时目录下的mmap文件，4MB一段，保留7天，close时删除
+     */
+    public OfflineStore() {
+        this(createTempDirectory(), true, 4 << 20, 7 * 24 * 3600_000L);
+    }
+
+    /**
+     * @param directory 段文件目录，null表示用堆外内存（全部常驻内存，只适合测试）
+     * @param segmentBytes 每段大小
+     * @param retentionMillis 溢出记录的保留时间
+     */
+    public OfflineStore(Path directory, int segmentBytes, long retentionMillis) {
+        this(directory, false, segmentBytes, retentionMillis);
+    }
+
+    private OfflineStore(Path directory, boolean ownsDirectory, int segmentBytes, long retentionMillis) {
+        if (segmentBytes < RECORD_BYTES) {
+            throw new IllegalArgumentException("segment too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.ownsDirectory = ownsDirectory;
+        this.segmentBytes = segmentBytes - segmentBytes % RECORD_BYTES;
+        this.retentionMillis = retentionMillis;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                deleteStaleSegments(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("open offline store directory failed: " + directory, e);
+            }
+        }
+        long purgeMillis = Math.max(1, Math.min(retentionMillis, PURGE_INTERVAL_MILLIS));
+        this.purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "offline-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleAtFixedRate(() -> purgeExpired(System.currentTimeMillis()),
+            purgeMillis, purgeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 追加一条溢出记录
+     *
+     * @param prev 同一用户上一条记录的地址，没有为 NONE
+     * @return 本条记录的地址
+     */
+    long append(long pointer, long prev, long nowMillis) {
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (active == null || active.position == segmentBytes) {
+                roll(nowMillis);
+            }
+            segment = active;
+            offset = segment.position;
+            segment.position = offset + RECORD_BYTES;
+            segment.lastWrite = nowMillis;
+        }
+        // 锁内只占位置，写记录在锁外，多个扩散通道同时溢出只在占位时短暂互斥
+        ByteBuffer buffer = segment.buffer;
+        buffer.putLong(offset, pointer);
+        buffer.putLong(offset + 8, prev);
+        buffer.putLong(offset + 16, nowMillis);
+        spilled.increment();
+        return (long) segment.id << 32 | offset;
+    }
+
+    /**
+     * 顺着链表读回一个用户的溢出记录
+     *
+     * @param head 最新一条记录的地址
+     * @param count 链表长度
+     * @return 消息指针，按溢出先后排列；超过保留期的部分被截掉
+     */
+    long[] read(long head, int count, long nowMillis) {
+        long[] pointers = new long[count];
+        int n = 0;
+        long cutoff = nowMillis - retentionMillis;
+        for (long address = head; address != NONE && n < count; ) {
+            Segment segment = segments.get((int) (address >>> 32));
+            if (segment == null) {
+                break;  // 所在段已过期回收，更早的记录都在更早的段里
+            }
+            int offset = (int) address;
+            if (segment.buffer.getLong(offset + 16) < cutoff) {
+                break;
+            }
+            pointers[n++] = segment.buffer.getLong(offset);
+            address = segment.buffer.getLong(offset + 8);
+        }
+        // 链表是从新到旧，翻转成从旧到新
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            long tmp = pointers[i];
+            pointers[i] = pointers[j];
+            pointers[j] = tmp;
+        }
+        return n == count ? pointers : Arrays.copyOf(pointers, n);
+    }
+
+    /**
+     * 删除超过保留期的段（后台定时执行，写满换段时也会顺带执行）
+     *
+     * @return 删除的段数
+     */
+    synchronized int purgeExpired(long nowMillis) {
+        int purged = 0;
+        long cutoff = nowMillis - retentionMillis;
+        for (Iterator<Map.Entry<Integer, Segment>> it = segments.entrySet().iterator(); it.hasNext(); ) {
+            Segment segment = it.next().getValue();
+            if (segment == active || segment.lastWrite >= cutoff) {
+                break;  // 段按时间顺序写，后面的更新
+            }
+            it.remove();
+            segment.delete();
+            purged++;
+        }
+        return purged;
+    }
+
+    /**
+     * 停止后台清理并删除所有段文件
+     */
+    @Override
+    public synchronized void close() {
+        purger.shutdown();
+        for (Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        active = null;
+        if (ownsDirectory) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("delete offline store directory failed: " + directory, e);
+            }
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 累计溢出的记录数
+     */
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    private void roll(long nowMillis) {
+        int id = active == null ? 0 : active.id + 1;
+        active = directory == null
+            ? new Segment(id, ByteBuffer.allocateDirect(segmentBytes), null)
+            : mapSegment(id);
+        segments.put(id, active);
+        purgeExpired(nowMillis);
+    }
+
+    private Segment mapSegment(int id) {
+        Path file = directory.resolve(String.format("offline-%08d.log", id));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes), file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("map offline segment failed: " + file, e);
+        }
+    }
+
+    private static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("im-offline-");
+        } catch (IOException e) {
+            throw new UncheckedIOException("create offline store directory failed", e);
+        }
+    }
+
+    private static void deleteStaleSegments(Path directory) throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "offline-*.log")) {
+            for (Path file : stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final ByteBuffer buffer;
+        final Path file;
+        int position;
+        volatile long lastWrite;
+
+        Segment(int id, ByteBuffer buffer, Path file) {
+            this.id = id;
+            this.buffer = buffer;
+            this.file = file;
+        }
+
+        void delete() {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);  // 映射在被GC前仍然可读，已删除的文件不再占目录项
+            } catch (IOException e) {
+                throw new UncheckedIOException("delete offline segment failed: " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.interview.systemdesign.im;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 按int下标访问、按页增长的数组
+ *
+ * 读不加锁（一次volatile读拿页表），只有新建页时加锁；扩容不搬已有元素，页内更新可以直接CAS。
+ */
+class PagedArray<T> {
+
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private volatile AtomicReferenceArray<T>[] pages = newPages(16);
+
+    static int slot(int index) {
+        return index & (PAGE_SIZE - 1);
+    }
+
+    T get(int index) {
+        AtomicReferenceArray<T>[] current = pages;
+        int p = index >>> PAGE_BITS;
+        if (p >= current.length || current[p] == null) {
+            return null;
+        }
+        return current[p].get(slot(index));
+    }
+
+    void set(int index, T value) {
+        page(index).set(slot(index), value);
+    }
+
+    AtomicReferenceArray<T> page(int index) {
+        int p = index >>> PAGE_BITS;
+        AtomicReferenceArray<T>[] current = pages;
+        if (p < current.length && current[p] != null) {
+            return current[p];
+        }
+        synchronized (this) {
+            current = pages;
+            if (p >= current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length << 1, p + 1));
+            }
+            if (current[p] == null) {
+                current[p] = new AtomicReferenceArray<>(PAGE_SIZE);
+            }
+            pages = current;  // volatile写发布新页
+            return current[p];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> AtomicReferenceArray<T>[] newPages(int n) {
+        return (AtomicReferenceArray<T>[]) new AtomicReferenceArray<?>[n];
+    }
+}
@@ -0,0 +1,360 @@
+package com.interview.systemdesign.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 在线状态服务
+ *
+ * 问题：
+ * 1. 在线状态只是User上的boolean，由login/logout设置，客户端掉线不发logout就永远"在线"
+ * 2. "我的2000个好友谁在线"只能逐个取User对象判断
+ * 3. 状态变化没有推送，好友只能轮询
+ *
+ * 方案：
+ * 1. 心跳超时用哈希时间轮：心跳把用户挂到 (当前tick + 超时tick数) 的槽里，每个tick只处理一个槽，
+ *    过期检查 O(1)，不用扫描全部会话。旧槽里的残留在处理时发现截止tick已变就丢弃（惰性删除）
+ * 2. 在线状态放在按用户int下标的位图里（每个用户1 bit），批量查好友在线 = 按int顺序读位图
+ * 3. 状态变化先记到待推送集合，每个推送周期合并一次：周期内 上线-下线 来回抖动的不推，
+ *    同一个订阅者在一个周期里收到的所有变化合成一次回调
+ */
+public class PresenceService implements AutoCloseable {
+
+    /**
+     * 订阅者收到的状态变化
+     */
+    public interface PresenceListener {
+        /**
+         * @param changes 好友ID -> 是否在线，一个推送周期内合并后的结果
+         */
+        void onPresenceChanged(String watcherId, Map<String, Boolean> changes);
+    }
+
+    private static final long NO_DEADLINE = 0;
+
+    private final IdInterner userIds;
+    private final Function<String, ? extends Collection<String>> watchersOf;
+    private final long tickMillis;
+    private final long timeoutTicks;
+    private final IntBag[] wheel;
+    private final int wheelMask;
+    private volatile long processedTick;  // 只由推进线程写
+
+    private final LongPages online = new LongPages();     // 在线位图
+    private final LongPages pushed = new LongPages();     // 最近一次推送出去的状态
+    private final LongPages deadlines = new LongPages();  // 每个用户的过期tick，0表示不在时间轮上
+    private final Set<Integer> changed = ConcurrentHashMap.newKeySet();
+    private final Map<String, PresenceListener> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker;
+
+    public PresenceService(Function<String, ? extends Collection<String>> watchersOf) {
+        this(new IdInterner(), watchersOf, 90_000, 1_000, 500);
+    }
+
+    /**
+     * @param userIds 用户ID驻留表
+     * @param watchersOf 用户 -> 关注其状态的人（好友）
+     * @param timeoutMillis 超过该时间没有心跳视为离线
+     * @param tickMillis 时间轮精度
+     * @param flushMillis 状态推送的合并周期
+     */
+    PresenceService(IdInterner userIds, Function<String, ? extends Collection<String>> watchersOf,
+                    long timeoutMillis, long tickMillis, long flushMillis) {
+        if (timeoutMillis < tickMillis || tickMillis <= 0) {
+            throw new IllegalArgumentException("timeout must be at least one tick");
+        }
+        this.userIds = userIds;
+        this.watchersOf = watchersOf;
+        this.tickMillis = tickMillis;
+        this.timeoutTicks = timeoutMillis / tickMillis;
+        // 一圈覆盖超时的两倍，未过期的会话不会和当前tick落在同一个槽
+        int size = Integer.highestOneBit((int) Math.min(timeoutTicks * 2, 1 << 20) - 1) << 1;
+        this.wheel = new IntBag[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new IntBag();
+        }
+        this.wheelMask = size - 1;
+        this.processedTick = System.currentTimeMillis() / tickMillis;
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> advance(System.currentTimeMillis()),
+            tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        ticker.scheduleAtFixedRate(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 登录：标记在线并开始计时
+     */
+    public void online(String userId) {
+        heartbeat(userId, System.currentTimeMillis());
+    }
+
+    /**
+     * 心跳；已经超时离线的用户再次心跳会重新上线
+     */
+    public void heartbeat(String userId) {
+        heartbeat(userId, System.currentTimeMillis());
+    }
+
+    void heartbeat(String userId, long nowMillis) {
+        int user = userIds.intern(userId);
+        long deadline = Math.max(nowMillis / tickMillis, processedTick + 1) + timeoutTicks;
+        // 同一tick内的重复心跳不再入槽
+        if (deadlines.getAndSet(user, deadline) != deadline) {
+            wheel[(int) (deadline & wheelMask)].add(user);
+        }
+        if (!online.setBit(user)) {
+            changed.add(user);
+        }
+    }
+
+    /**
+     * 主动登出
+     */
+    public void offline(String userId) {
+        int user = userIds.find(userId);
+        if (user < 0) {
+            return;
+        }
+        deadlines.getAndSet(user, NO_DEADLINE);  // 时间轮里的残留会被丢弃
+        if (online.clearBit(user)) {
+            changed.add(user);
+        }
+    }
+
+    public boolean isOnline(String userId) {
+        int user = userIds.find(userId);
+        return user >= 0 && online.testBit(user);
+    }
+
+    /**
+     * 批量查在线：返回其中在线的用户
+     */
+    public List<String> onlineAmong(Collection<String> userIdList) {
+        List<String> result = new ArrayList<>();
+        for (String userId : userIdList) {
+            int user = userIds.find(userId);
+            if (user >= 0 && online.testBit(user)) {
+                result.add(userId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查在线（有序int数组）：相邻用户落在同一个long上时只读一次
+     */
+    int[] onlineAmong(int[] sortedUsers) {
+        int[] result = new int[sortedUsers.length];
+        int count = 0;
+        int loadedWord = -1;
+        long bits = 0;
+        for (int user : sortedUsers) {
+            int word = user >>> 6;
+            if (word != loadedWord) {
+                bits = online.get(word);
+                loadedWord = word;
+            }
+            if ((bits & (1L << user)) != 0) {
+                result[count++] = user;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    public int getOnlineCount() {
+        return online.bitCount((userIds.size() >>> 6) + 1);
+    }
+
+    /**
+     * 订阅好友的状态变化（一般在登录时订阅）
+     */
+    public void subscribe(String watcherId, PresenceListener listener) {
+        subscribers.put(watcherId, listener);
+    }
+
+    public void unsubscribe(String watcherId) {
+        subscribers.remove(watcherId);
+    }
+
+    /**
+     * 推进时间轮到 nowMillis，处理沿途每个槽里到期的用户
+     *
+     * @return 本次超时下线的用户数
+     */
+    synchronized int advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        int expired = 0;
+        while (processedTick < target) {
+            long tick = ++processedTick;
+            IntBag slot = wheel[(int) (tick & wheelMask)];
+            for (int user : slot.drain()) {
+                long deadline = deadlines.get(user);
+                if (deadline == tick) {
+                    if (deadlines.compareAndSet(user, tick, NO_DEADLINE) && online.clearBit(user)) {
+                        if (deadlines.get(user) != NO_DEADLINE) {
+                            online.setBit(user);  // 清位前刚好来了心跳，以心跳为准
+                        }
+                        changed.add(user);
+                        expired++;
+                    }
+                } else if (deadline > tick && (deadline & wheelMask) == (tick & wheelMask)) {
+                    slot.add(user);  // 推进滞后超过一圈时，属于下一圈的会话放回去
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 把本周期合并后的状态变化推给订阅者
+     *
+     * @return 回调次数
+     */
+    int flush() {
+        if (changed.isEmpty()) {
+            return 0;
+        }
+        Map<String, Map<String, Boolean>> perWatcher = new HashMap<>();
+        // 先移除再读状态：处理期间的新变化会重新加入，留到下个周期
+        for (Iterator<Integer> it = changed.iterator(); it.hasNext(); ) {
+            int user = it.next();
+            it.remove();
+            boolean state = online.testBit(user);
+            if (state == pushed.testBit(user)) {
+                continue;  // 周期内来回抖动，最终状态没变
+            }
+            if (state) {
+                pushed.setBit(user);
+            } else {
+                pushed.clearBit(user);
+            }
+            String userId = userIds.name(user);
+            for (String watcher : watchersOf.apply(userId)) {
+                if (subscribers.containsKey(watcher)) {
+                    perWatcher.computeIfAbsent(watcher, k -> new HashMap<>()).put(userId, state);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Boolean>> entry : perWatcher.entrySet()) {
+            PresenceListener listener = subscribers.get(entry.getKey());
+            if (listener != null) {
+                listener.onPresenceChanged(entry.getKey(), entry.getValue());
+            }
+        }
+        return perWatcher.size();
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdown();
+    }
+
+    /**
+     * 时间轮的一个槽：用户int的无序集合
+     */
+    private static final class IntBag {
+        private int[] users = new int[8];
+        private int size;
+
+        synchronized void add(int user) {
+            if (size == users.length) {
+                users = Arrays.copyOf(users, size << 1);
+            }
+            users[size++] = user;
+        }
+
+        synchronized int[] drain() {
+            int[] result = Arrays.copyOf(users, size);
+            size = 0;
+            if (users.length > 1024) {
+                users = new int[8];  // 高峰过后释放
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 按页增长的long数组，既当位图也存每个用户的截止tick
+     */
+    private static final class LongPages {
+        private final PagedArray<AtomicLongArray> pages = new PagedArray<>();
+
+        long get(int index) {
+            AtomicLongArray page = pages.get(index >>> PagedArray.PAGE_BITS);
+            return page == null ? 0 : page.get(PagedArray.slot(index));
+        }
+
+        long getAndSet(int index, long value) {
+            return page(index).getAndSet(PagedArray.slot(index), value);
+        }
+
+        boolean compareAndSet(int index, long expect, long update) {
+            return page(index).compareAndSet(PagedArray.slot(index), expect, update);
+        }
+
+        boolean testBit(int bit) {
+            return (get(bit >>> 6) & (1L << bit)) != 0;
+        }
+
+        /**
+         * @return 原来是否已置位
+         */
+        boolean setBit(int bit) {
+            AtomicLongArray page = page(bit >>> 6);
+            int slot = PagedArray.slot(bit >>> 6);
+            long mask = 1L << bit;
+            return (page.getAndAccumulate(slot, mask, (old, m) -> old | m) & mask) != 0;
+        }
+
+        /**
+         * @return 原来是否已置位
+         */
+        boolean clearBit(int bit) {
+            AtomicLongArray page = page(bit >>> 6);
+            int slot = PagedArray.slot(bit >>> 6);
+            long mask = 1L << bit;
+            return (page.getAndAccumulate(slot, mask, (old, m) -> old & ~m) & mask) != 0;
+        }
+
+        int bitCount(int words) {
+            int count = 0;
+            for (int i = 0; i < words; i++) {
+                count += Long.bitCount(get(i));
+            }
+            return count;
+        }
+
+        private AtomicLongArray page(int index) {
+            int p = index >>> PagedArray.PAGE_BITS;
+            AtomicLongArray page = pages.get(p);
+            if (page != null) {
+                return page;
+            }
+            synchronized (this) {
+                page = pages.get(p);
+                if (page == null) {
+                    page = new AtomicLongArray(PagedArray.PAGE_SIZE);
+                    pages.set(p, page);
+                }
+                return page;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.interview.systemdesign.seckill;
+
+/**
+ * 按Key限流器 - 每个用户/商品一个令牌桶
+ *
+ * 问题：
+ * 全局令牌桶只有一个，刷子可以把整个预算吃光，正常用户被误伤。
+ *
+ * 方案：
+ * 1. 每个Key（userId / productId）独立一个令牌桶
+ * 2. 开放寻址的long主键哈希表，桶状态存在并行的long[]里，不装箱、不建对象
+ * 3. 分段加锁，降低竞争
+ * 4. 空闲超过TTL的桶在段满时批量清理，内存有上界
+ *
+ * 令牌数按千分之一计量（milli-token），这样按毫秒补充时不会丢小数。
+ * Long.MIN_VALUE 是空槽标记，不能作为Key，这个Key的请求一律拒绝。
+ */
+public class KeyedRateLimiter {
+
+    private static final long EMPTY = Long.MIN_VALUE;  // 空槽标记
+    private static final long SCALE = 1000;            // 1个令牌 = 1000 milli-token
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final long capacity;        // 桶容量（milli-token）
+    private final long ratePerSecond;   // 令牌生成速率（个/秒）
+    private final long idleTtlMillis;   // 桶空闲多久可以被回收
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * @param capacity 每个桶的容量
+     * @param ratePerSecond 每个桶的令牌生成速率（个/秒）
+     * @param idleTtlMillis 桶空闲回收时间
+     * @param maxKeys 最多同时维护的Key数量（内存上界）
+     */
+    public KeyedRateLimiter(int capacity, int ratePerSecond, long idleTtlMillis, int maxKeys) {
+        if (capacity <= 0 || ratePerSecond <= 0 || idleTtlMillis <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("capacity, rate, ttl and maxKeys must be positive");
+        }
+        this.capacity = capacity * SCALE;
+        this.ratePerSecond = ratePerSecond;
+        this.idleTtlMillis = idleTtlMillis;
+
+        int segmentCount = tableSizeFor(Runtime.getRuntime().availableProcessors() * 4);
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        int perSegment = Math.max(8, (maxKeys + segmentCount - 1) / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * 尝试获取一个令牌
+     */
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    boolean tryAcquire(long key, long now) {
+        if (key == EMPTY) {
+            return false;
+        }
+        long h = mix(key);
+        return segments[(int) (h >>> 32) & segmentMask].tryAcquire(key, (int) h, now);
+    }
+
+    /**
+     * 退还一个令牌（拿到令牌后下游又拒绝了这次请求时调用），不超过桶容量
+     */
+    public void refund(long key) {
+        if (key == EMPTY) {
+            return;
+        }
+        long h = mix(key);
+        segments[(int) (h >>> 32) & segmentMask].refund(key, (int) h);
+    }
+
+    /**
+     * 主动清理所有空闲桶（可由定时任务调用）
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.evictIdle(now);
+        }
+    }
+
+    /**
+     * 当前维护的桶数量
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 分段 - 线性探测的开放寻址表
+     */
+    private final class Segment {
+        private final int maxSize;      // 本段最多维护的桶数量
+        private final long[] keys;
+        private final long[] tokens;     // 剩余令牌（milli-token）
+        private final long[] lastRefill; // 上次补充时间，同时作为最近访问时间
+        private final int mask;
+        private int size;
+        private long lastEvictTime;      // 上次清理时间，避免段满时每个新Key都全表扫描
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+            int tableSize = tableSizeFor((int) (maxSize / LOAD_FACTOR) + 1);
+            this.keys = new long[tableSize];
+            this.tokens = new long[tableSize];
+            this.lastRefill = new long[tableSize];
+            this.mask = tableSize - 1;
+            java.util.Arrays.fill(keys, EMPTY);
+        }
+
+        synchronized boolean tryAcquire(long key, int hash, long now) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                if (size >= maxSize) {
+                    if (now - lastEvictTime >= Math.max(1, idleTtlMillis / 8)) {
+                        evictIdle(now);
+                    }
+                    if (size >= maxSize) {
+                        // 活跃Key已达上限，拒绝新Key（宁可误限流，不可打爆内存）
+                        return false;
+                    }
+                }
+                slot = insert(key, hash, now);
+            } else {
+                refill(slot, now);
+            }
+
+            if (tokens[slot] >= SCALE) {
+                tokens[slot] -= SCALE;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void refund(long key, int hash) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                tokens[slot] = Math.min(capacity, tokens[slot] + SCALE);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * 清理空闲桶：把存活的桶重新插入，顺便消除删除带来的探测空洞
+         */
+        synchronized void evictIdle(long now) {
+            lastEvictTime = now;
+            long[] oldKeys = keys.clone();
+            long[] oldTokens = tokens.clone();
+            long[] oldRefill = lastRefill.clone();
+            java.util.Arrays.fill(keys, EMPTY);
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY || now - oldRefill[i] >= idleTtlMillis) {
+                    continue;
+                }
+                int slot = insert(oldKeys[i], (int) mix(oldKeys[i]), oldRefill[i]);
+                tokens[slot] = oldTokens[i];
+            }
+        }
+
+        private int find(long key, int hash) {
+            int slot = hash & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int insert(long key, int hash, long now) {
+            int slot = hash & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            tokens[slot] = capacity;
+            lastRefill[slot] = now;
+            size++;
+            return slot;
+        }
+
+        private void refill(int slot, long now) {
+            long elapsed = now - lastRefill[slot];
+            if (elapsed > 0) {
+                // 每毫秒补充 rate 个milli-token
+                long newTokens = elapsed * ratePerSecond;
+                tokens[slot] = Math.min(capacity, tokens[slot] + newTokens);
+                lastRefill[slot] = now;
+            }
+        }
+    }
+
+    /**
+     * 64位哈希扰动（murmur3 fmix64）
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
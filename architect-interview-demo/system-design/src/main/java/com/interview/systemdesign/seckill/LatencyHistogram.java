@@ -0,0 +1,115 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并发延迟直方图（HdrHistogram式的对数-线性分桶）
+ *
+ * 1. 按2的幂分段，每段再线性切成64个小桶，相对误差 < 1/64
+ * 2. 记录只是一次原子自增，多线程直接写，不需要加锁
+ * 3. 内存固定（约 60 * 64 个long），与样本数无关
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;  // 第0段线性覆盖0~127
+    private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS + 2;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * (SUB_BUCKETS / 2));
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 记录一个样本（纳秒）
+     */
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // 重试直到更新最大值
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * 百分位值（纳秒），返回所在桶的上界
+     *
+     * @param percentile 0 ~ 100
+     */
+    public long percentileNanos(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 单行摘要：count / mean / p50 / p90 / p99 / p99.9 / max（微秒）
+     */
+    public String summary() {
+        return String.format("%-14s count=%-9d mean=%8.1fus p50=%8.1fus p90=%8.1fus p99=%8.1fus p99.9=%8.1fus max=%8.1fus",
+                name, getCount(), getMeanNanos() / 1000.0,
+                percentileNanos(50) / 1000.0, percentileNanos(90) / 1000.0,
+                percentileNanos(99) / 1000.0, percentileNanos(99.9) / 1000.0,
+                getMaxNanos() / 1000.0);
+    }
+
+    /**
+     * 值 -> 桶下标：小于SUB_BUCKETS的值线性放在第0段，更大的值按最高位所在的段再线性切分
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return magnitude * (SUB_BUCKETS / 2) + SUB_BUCKETS / 2 + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+        int sub = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return (((long) sub + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,76 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多生产者单消费者无锁队列（Vyukov MPSC）
+ *
+ * 原理：
+ * 1. 生产者只做一次 getAndSet(head)，再把前驱的next指向自己 —— 无CAS重试
+ * 2. 消费者只有一个，tail是普通字段，沿next往后读
+ * 3. 生产者 getAndSet 之后、写next之前，消费者会短暂看到"空"，下次poll即可看到
+ *
+ * 队列深度 = 入队计数 - 出队计数，入队用LongAdder避免生产者争同一个计数器。
+ */
+public class MpscQueue<E> {
+
+    private final AtomicReference<Node<E>> head;
+    private Node<E> tail;                      // 只有消费者线程访问
+    private final LongAdder offered = new LongAdder();
+    private volatile long polled;              // 只有消费者线程写
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = new AtomicReference<>(stub);
+        this.tail = stub;
+    }
+
+    /**
+     * 入队（任意线程）
+     */
+    public void offer(E value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node<E> node = new Node<>(value);
+        Node<E> prev = head.getAndSet(node);
+        prev.next = node;
+        offered.increment();
+    }
+
+    /**
+     * 出队（仅消费者线程）
+     */
+    public E poll() {
+        Node<E> next = tail.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;  // 帮助GC
+        tail = next;
+        polled = polled + 1;
+        return value;
+    }
+
+    /**
+     * 近似队列深度
+     */
+    public long size() {
+        return Math.max(0, offered.sum() - polled);
+    }
+
+    public boolean isEmpty() {
+        return tail.next == null && size() == 0;
+    }
+
+    private static final class Node<E> {
+        private E value;
+        private volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内订单流水线 - 替代外部MQ，方便整链路压测
+ *
+ * 秒杀线程 --offer--> MPSC队列 --单线程批量drain--> SeckillOrderConsumer.onMessages(batch)
+ *
+ * 1. 生产者只做一次无锁入队，秒杀接口不等下单
+ * 2. 消费者攒够maxBatch条或等满linger时间就提交一批
+ * 3. 记录队列深度、处理延迟（入队到开始处理的lag）
+ * 4. 队列空闲时消费者park，生产者入队后发现它在睡才unpark，忙时不产生唤醒开销
+ *
+ * 关闭时先拒绝新消息，等正在入队的生产者做完，再让消费者把队列里剩下的处理完，不丢已接受的消息。
+ */
+public class OrderPipeline implements AutoCloseable {
+
+    private final MpscQueue<SeckillSystem.SeckillMessage> queue = new MpscQueue<>();
+    private final SeckillSystem.SeckillOrderConsumer consumer;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final Thread worker;
+    private volatile boolean running = true;   // 是否接受新消息
+    private volatile boolean stopped;          // 不会再有新消息入队，消费者处理完剩余的就退出
+    private volatile boolean idle;             // 消费者正在park等消息
+    private final AtomicInteger publishing = new AtomicInteger();  // 正在入队的生产者数
+
+    // 指标
+    private final AtomicLong published = new AtomicLong();
+    private volatile long processed;
+    private volatile long batches;
+    private volatile long lastLagNanos;
+    private volatile long maxLagNanos;
+
+    /**
+     * @param consumer 订单消费者
+     * @param maxBatch 单批最大条数
+     * @param lingerMillis 不满一批时最多等待多久
+     */
+    public OrderPipeline(SeckillSystem.SeckillOrderConsumer consumer, int maxBatch, long lingerMillis) {
+        this.consumer = consumer;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.worker = new Thread(this::runLoop, "seckill-order-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 投递秒杀消息（任意线程）
+     */
+    public boolean publish(SeckillSystem.SeckillMessage message) {
+        // 先登记再检查running，close要么看到这次入队，要么这里看到已关闭
+        publishing.incrementAndGet();
+        try {
+            if (!running) {
+                return false;
+            }
+            message.markEnqueued();
+            queue.offer(message);
+            published.incrementAndGet();
+        } finally {
+            publishing.decrementAndGet();
+        }
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return true;
+    }
+
+    /**
+     * 等待已投递的消息全部处理完（压测对账用）
+     */
+    public boolean awaitDrained(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (processed < published.get()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    public Metrics metrics() {
+        return new Metrics(published.get(), processed, batches, queue.size(),
+                TimeUnit.NANOSECONDS.toMicros(lastLagNanos),
+                TimeUnit.NANOSECONDS.toMicros(maxLagNanos),
+                consumer.getFailedCount(), consumer.getRolledBackCount());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        while (publishing.get() > 0) {
+            Thread.yield();  // 只是一次入队，很快
+        }
+        stopped = true;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runLoop() {
+        List<SeckillSystem.SeckillMessage> batch = new ArrayList<>(maxBatch);
+        while (!stopped || !queue.isEmpty()) {
+            long lingerDeadline = 0;
+            while (batch.size() < maxBatch) {
+                SeckillSystem.SeckillMessage message = queue.poll();
+                if (message != null) {
+                    if (batch.isEmpty()) {
+                        lingerDeadline = System.nanoTime() + lingerNanos;  // 从本批第一条开始计时
+                    }
+                    batch.add(message);
+                    continue;
+                }
+                if (stopped) {
+                    break;
+                }
+                long waitNanos = batch.isEmpty() ? 0 : lingerDeadline - System.nanoTime();
+                if (!batch.isEmpty() && waitNanos <= 0) {
+                    break;
+                }
+                // 先声明要睡再复查队列，和生产者"先入队再看idle"配对，不会漏掉唤醒
+                idle = true;
+                if (queue.isEmpty() && !stopped) {
+                    if (batch.isEmpty()) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, waitNanos);
+                    }
+                }
+                idle = false;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            long lag = System.nanoTime() - batch.get(0).getEnqueueNanos();  // 最早一条的等待时间
+            lastLagNanos = lag;
+            if (lag > maxLagNanos) {
+                maxLagNanos = lag;
+            }
+
+            try {
+                consumer.onMessages(batch);
+            } catch (RuntimeException e) {
+                // 消费者内部已经做了回滚，这里只保证流水线不退出
+                System.err.println("订单批次处理失败: " + e.getMessage());
+            }
+            processed += batch.size();
+            batches++;
+            batch.clear();
+        }
+    }
+
+    /**
+     * 流水线指标快照
+     */
+    public static class Metrics {
+        private final long published;
+        private final long processed;
+        private final long batches;
+        private final long queueDepth;
+        private final long lastLagMicros;
+        private final long maxLagMicros;
+        private final long failed;
+        private final long rolledBack;
+
+        Metrics(long published, long processed, long batches, long queueDepth,
+                long lastLagMicros, long maxLagMicros, long failed, long rolledBack) {
+            this.published = published;
+            this.processed = processed;
+            this.batches = batches;
+            this.queueDepth = queueDepth;
+            this.lastLagMicros = lastLagMicros;
+            this.maxLagMicros = maxLagMicros;
+            this.failed = failed;
+            this.rolledBack = rolledBack;
+        }
+
+        public long getPublished() { return published; }
+        public long getProcessed() { return processed; }
+        public long getBatches() { return batches; }
+        public long getQueueDepth() { return queueDepth; }
+        public long getLastLagMicros() { return lastLagMicros; }
+        public long getMaxLagMicros() { return maxLagMicros; }
+        public long getFailed() { return failed; }
+        public long getRolledBack() { return rolledBack; }
+
+        @Override
+        public String toString() {
+            return "Metrics{published=" + published +
+                    ", processed=" + processed +
+                    ", batches=" + batches +
+                    ", queueDepth=" + queueDepth +
+                    ", lastLagMicros=" + lastLagMicros +
+                    ", maxLagMicros=" + maxLagMicros +
+                    ", failed=" + failed +
+                    ", rolledBack=" + rolledBack + '}';
+        }
+    }
+}
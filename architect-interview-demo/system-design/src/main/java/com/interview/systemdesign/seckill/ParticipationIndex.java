@@ -0,0 +1,140 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 本地防重索引 - 用户是否已参与过某个商品的秒杀
+ *
+ * 问题：
+ * 每个请求都要 Redis setIfAbsent 一次，多一次网络往返。
+ *
+ * 方案（Roaring Bitmap的分块思想）：
+ * 1. 每个商品一个位图，userId的高位选容器，低16位是容器内的bit
+ * 2. 每个容器是 65536 bit = 8KB 的 AtomicLongArray，有用户落进来才分配
+ * 3. checkAndMark 就是一次CAS置位，无锁、纳秒级
+ * 4. 本地第一次置位成功才去Redis确认（多节点时同一用户可能打到不同节点）
+ *
+ * userId < 2^32 走两级数组目录（256 x 256 个容器槽，第二级也是有用户落进来才分配），
+ * 冷门商品只占一个1KB的一级目录；更大的ID走并发Map目录。
+ */
+public class ParticipationIndex {
+
+    private static final int CONTAINER_BITS = 16;
+    private static final int CONTAINER_WORDS = (1 << CONTAINER_BITS) >>> 6;  // 1024个long
+    private static final int DENSE_CONTAINERS = 1 << (32 - CONTAINER_BITS);   // 65536个容器
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;                       // 每页256个容器槽
+
+    private final Map<Long, UserBitmap> products = new ConcurrentHashMap<>();
+
+    /**
+     * 检查并标记
+     *
+     * @return 第一次参与返回true，已经参与过返回false
+     */
+    public boolean checkAndMark(long productId, long userId) {
+        return products.computeIfAbsent(productId, k -> new UserBitmap()).checkAndMark(userId);
+    }
+
+    /**
+     * 是否已参与
+     */
+    public boolean contains(long productId, long userId) {
+        UserBitmap bitmap = products.get(productId);
+        return bitmap != null && bitmap.contains(userId);
+    }
+
+    /**
+     * 撤销标记（库存不足、下单失败回滚时允许用户重试）
+     */
+    public void unmark(long productId, long userId) {
+        UserBitmap bitmap = products.get(productId);
+        if (bitmap != null) {
+            bitmap.unmark(userId);
+        }
+    }
+
+    /**
+     * 清空某个商品的参与记录（活动重置）
+     */
+    public void clear(long productId) {
+        products.remove(productId);
+    }
+
+    /**
+     * 单个商品的用户位图
+     */
+    private static final class UserBitmap {
+        private final AtomicReferenceArray<AtomicReferenceArray<AtomicLongArray>> dense =
+                new AtomicReferenceArray<>(DENSE_CONTAINERS >>> PAGE_BITS);
+        private final Map<Long, AtomicLongArray> sparse = new ConcurrentHashMap<>();
+
+        boolean checkAndMark(long userId) {
+            AtomicLongArray container = container(userId, true);
+            int word = wordIndex(userId);
+            long bit = 1L << userId;
+            long current;
+            do {
+                current = container.get(word);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+            } while (!container.compareAndSet(word, current, current | bit));
+            return true;
+        }
+
+        boolean contains(long userId) {
+            AtomicLongArray container = container(userId, false);
+            return container != null && (container.get(wordIndex(userId)) & (1L << userId)) != 0;
+        }
+
+        void unmark(long userId) {
+            AtomicLongArray container = container(userId, false);
+            if (container == null) {
+                return;
+            }
+            int word = wordIndex(userId);
+            long bit = 1L << userId;
+            long current;
+            do {
+                current = container.get(word);
+                if ((current & bit) == 0) {
+                    return;
+                }
+            } while (!container.compareAndSet(word, current, current & ~bit));
+        }
+
+        private AtomicLongArray container(long userId, boolean create) {
+            long high = userId >>> CONTAINER_BITS;
+            if (userId >= 0 && high < DENSE_CONTAINERS) {
+                int pageIndex = (int) high >>> PAGE_BITS;
+                int index = (int) high & (PAGE_SIZE - 1);
+                AtomicReferenceArray<AtomicLongArray> page = dense.get(pageIndex);
+                if (page == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    // 并发分配时只有一个CAS成功，失败方用赢家的页/容器
+                    AtomicReferenceArray<AtomicLongArray> createdPage = new AtomicReferenceArray<>(PAGE_SIZE);
+                    page = dense.compareAndSet(pageIndex, null, createdPage) ? createdPage : dense.get(pageIndex);
+                }
+                AtomicLongArray container = page.get(index);
+                if (container == null && create) {
+                    AtomicLongArray created = new AtomicLongArray(CONTAINER_WORDS);
+                    container = page.compareAndSet(index, null, created) ? created : page.get(index);
+                }
+                return container;
+            }
+            return create
+                    ? sparse.computeIfAbsent(high, k -> new AtomicLongArray(CONTAINER_WORDS))
+                    : sparse.get(high);
+        }
+
+        private static int wordIndex(long userId) {
+            return (int) (userId & ((1 << CONTAINER_BITS) - 1)) >>> 6;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 秒杀压测工具
+ *
+ * 1. 按到达模式（尖峰 / 爬坡 / 平稳）预先生成每个请求的到达时间，压测线程按时间点发起请求
+ * 2. 响应时间从"计划到达时间"算起，避免协调遗漏（coordinated omission）把排队时间藏掉
+ * 3. 链路每个阶段单独一个直方图
+ * 4. 结束后等订单流水线处理完，校验：订单数不超过库存、没有用户买到两件、库存账平
+ *
+ * 用法：SeckillLoadHarness [SPIKE|RAMP|SUSTAINED] [用户数] [库存] [压测线程数] [持续毫秒] [重复请求比例] [merge]
+ * 带 merge 时开启请求合并扣库存，和不带的结果对比决定是否值得开启
+ */
+public class SeckillLoadHarness {
+
+    private static final long PRODUCT_ID = 1001L;
+
+    /**
+     * 到达模式
+     */
+    public enum ArrivalPattern {
+        /** 尖峰：绝大多数请求挤在开头 */
+        SPIKE,
+        /** 爬坡：请求速率线性上升 */
+        RAMP,
+        /** 平稳：匀速到达 */
+        SUSTAINED;
+
+        /**
+         * 第i个请求（共n个）的到达时间偏移
+         */
+        long offsetNanos(int i, int n, long durationNanos) {
+            double x = (double) i / n;
+            switch (this) {
+                case SPIKE:
+                    return (long) (durationNanos * x * x * x);
+                case RAMP:
+                    return (long) (durationNanos * Math.sqrt(x));
+                default:
+                    return (long) (durationNanos * x);
+            }
+        }
+    }
+
+    private final ArrivalPattern pattern;
+    private final int users;
+    private final long stock;
+    private final int threads;
+    private final long durationNanos;
+    private final double duplicateRatio;  // 额外重复请求比例（模拟刷子反复点）
+    private final boolean merge;          // 是否开启请求合并扣库存
+
+    private final LatencyHistogram responseTime = new LatencyHistogram("response");
+    private final LatencyHistogram serviceTime = new LatencyHistogram("service");
+    private final Map<SeckillSystem.Stage, LatencyHistogram> stageHistograms = new EnumMap<>(SeckillSystem.Stage.class);
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public SeckillLoadHarness(ArrivalPattern pattern, int users, long stock, int threads,
+                              long durationMillis, double duplicateRatio) {
+        this(pattern, users, stock, threads, durationMillis, duplicateRatio, false);
+    }
+
+    public SeckillLoadHarness(ArrivalPattern pattern, int users, long stock, int threads,
+                              long durationMillis, double duplicateRatio, boolean merge) {
+        this.pattern = pattern;
+        this.users = users;
+        this.stock = stock;
+        this.threads = threads;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.duplicateRatio = duplicateRatio;
+        this.merge = merge;
+        for (SeckillSystem.Stage stage : SeckillSystem.Stage.values()) {
+            stageHistograms.put(stage, new LatencyHistogram(stage.name()));
+        }
+    }
+
+    /**
+     * 执行一轮压测并校验结果
+     */
+    public void run() throws InterruptedException {
+        SeckillSystem.InMemoryOrderRepository repository = new SeckillSystem.InMemoryOrderRepository();
+        ShardedStockLedger ledger = new ShardedStockLedger();
+        SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+        ParticipationIndex participationIndex = new ParticipationIndex();
+        OrderPipeline pipeline = new OrderPipeline(
+                new SeckillSystem.SeckillOrderConsumer(repository, ledger, soldOutRegistry, participationIndex), 500, 5);
+        SeckillSystem.SeckillService service = new SeckillSystem.SeckillService(
+                new KeyedRateLimiter(5, 5, 60_000, users * 2),
+                new KeyedRateLimiter(users, users, 60_000, 16),  // 商品维度不限流，压的是整条链路
+                ledger, soldOutRegistry, participationIndex,
+                merge ? new StockDeductionMerger(ledger, 200, 256, 1_000) : null,
+                repository, pipeline);
+        service.setStageRecorder(new HistogramStageRecorder());
+        service.initStock(PRODUCT_ID, stock);
+
+        // 1. 生成请求计划
+        int requests = (int) (users * (1 + duplicateRatio));
+        long[] offsets = new long[requests];
+        long[] userIds = new long[requests];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < requests; i++) {
+            offsets[i] = pattern.offsetNanos(i, requests, durationNanos);
+            userIds[i] = i < users ? i : random.nextInt(users);
+        }
+        shuffle(userIds, random);
+
+        // 2. 按计划时间发起请求
+        AtomicInteger next = new AtomicInteger();
+        long startNanos = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    long intended = startNanos + offsets[i];
+                    long now = waitUntil(intended);
+                    SeckillSystem.Result result = service.seckill(userIds[i], PRODUCT_ID);
+                    long end = System.nanoTime();
+                    serviceTime.recordNanos(end - now);
+                    responseTime.recordNanos(end - intended);
+                    if (result.isSuccess()) {
+                        succeeded.increment();
+                    } else {
+                        rejected.increment();
+                    }
+                }
+            }, "seckill-load-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // 3. 等订单全部落库
+        if (!pipeline.awaitDrained(30_000)) {
+            throw new IllegalStateException("订单流水线30秒内未处理完: " + pipeline.metrics());
+        }
+        OrderPipeline.Metrics metrics = pipeline.metrics();
+        service.shutdown();
+
+        report(requests, elapsedNanos, metrics);
+        verify(repository, metrics);
+    }
+
+    private void report(int requests, long elapsedNanos, OrderPipeline.Metrics metrics) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("========== 秒杀压测: " + pattern + (merge ? " (请求合并)" : "") + " ==========");
+        System.out.printf("用户数=%d 请求数=%d 库存=%d 线程=%d 耗时=%.2fs%n", users, requests, stock, threads, seconds);
+        System.out.printf("吞吐=%.0f req/s 成功=%d 失败=%d%n", requests / seconds, succeeded.sum(), rejected.sum());
+        System.out.println(responseTime.summary());
+        System.out.println(serviceTime.summary());
+        for (LatencyHistogram histogram : stageHistograms.values()) {
+            System.out.println(histogram.summary());
+        }
+        System.out.println("订单流水线: " + metrics);
+    }
+
+    /**
+     * 对账：不超卖、不重复购买、库存守恒
+     */
+    private void verify(SeckillSystem.InMemoryOrderRepository repository, OrderPipeline.Metrics metrics) {
+        int orders = repository.getOrders().size();
+        if (orders > stock) {
+            throw new IllegalStateException("超卖: 订单数=" + orders + " 库存=" + stock);
+        }
+
+        Map<Long, Integer> ordersPerUser = new HashMap<>();
+        for (SeckillSystem.SeckillOrder order : repository.getOrders()) {
+            ordersPerUser.merge(order.getUserId(), 1, Integer::sum);
+        }
+        long duplicated = ordersPerUser.values().stream().filter(count -> count > 1).count();
+        if (duplicated > 0) {
+            throw new IllegalStateException("重复购买: " + duplicated + " 个用户买到了不止一件");
+        }
+
+        if (orders + repository.getStock(PRODUCT_ID) != stock) {
+            throw new IllegalStateException("库存不守恒: 订单数=" + orders + " 剩余=" + repository.getStock(PRODUCT_ID));
+        }
+        if (succeeded.sum() != orders + metrics.getRolledBack()) {
+            throw new IllegalStateException("成功数与订单数不一致: 成功=" + succeeded.sum()
+                    + " 订单=" + orders + " 回滚=" + metrics.getRolledBack());
+        }
+        System.out.println("校验通过: 订单数=" + orders + " <= 库存=" + stock + "，无重复购买");
+    }
+
+    /**
+     * 等到计划时间：远的park，近的自旋
+     */
+    private static long waitUntil(long deadline) {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            long remaining = deadline - now;
+            if (remaining > 50_000) {
+                LockSupport.parkNanos(remaining - 20_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return now;
+    }
+
+    private static void shuffle(long[] values, SplittableRandom random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    /**
+     * 把每个阶段的耗时写进对应的直方图
+     */
+    private final class HistogramStageRecorder implements SeckillSystem.StageRecorder {
+        @Override
+        public long start() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long record(SeckillSystem.Stage stage, long startNanos) {
+            long now = System.nanoTime();
+            stageHistograms.get(stage).recordNanos(now - startNanos);
+            return now;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ArrivalPattern pattern = args.length > 0 ? ArrivalPattern.valueOf(args[0]) : ArrivalPattern.SPIKE;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        long stock = args.length > 2 ? Long.parseLong(args[2]) : 10_000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        long durationMillis = args.length > 4 ? Long.parseLong(args[4]) : 2_000;
+        double duplicateRatio = args.length > 5 ? Double.parseDouble(args[5]) : 0.1;
+        boolean merge = args.length > 6 && "merge".equalsIgnoreCase(args[6]);
+
+        new SeckillLoadHarness(pattern, users, stock, threads, durationMillis, duplicateRatio, merge).run();
+    }
+}
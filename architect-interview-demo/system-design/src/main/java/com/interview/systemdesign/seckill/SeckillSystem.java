@@ -1,7 +1,16 @@
 package com.interview.systemdesign.seckill;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 秒杀系统设计
@@ -27,6 +36,79 @@ public class SeckillSystem {
         // private RedisTemplate<String, Object> redisTemplate;
         // private RocketMQTemplate rocketMQTemplate;
         
+        private final KeyedRateLimiter userLimiter;     // 单用户限流，防止一个刷子吃光全部预算
+        private final KeyedRateLimiter productLimiter;  // 单商品限流，保护热点商品
+        private final ShardedStockLedger stockLedger;   // 本地分片库存，扣减不再打同一个热点Key
+        private final SoldOutRegistry soldOutRegistry;  // 售罄标记，卖完后的请求一次volatile读就返回
+        private final ParticipationIndex participationIndex;  // 本地防重位图，挡掉绝大多数重复请求
+        private final StockDeductionMerger stockMerger; // 请求合并扣库存，为null时逐个扣减（默认）
+        private final OrderRepository orderRepository;  // 订单/真实库存存储
+        private final OrderPipeline orderPipeline;      // 进程内订单流水线，替代MQ
+        private volatile StageRecorder stageRecorder = StageRecorder.NOOP;  // 分阶段计时，压测时注入
+        
+        public SeckillService() {
+            this(new ShardedStockLedger(), new SoldOutRegistry(), new ParticipationIndex(),
+                 new InMemoryOrderRepository());
+        }
+        
+        private SeckillService(ShardedStockLedger stockLedger, SoldOutRegistry soldOutRegistry,
+                               ParticipationIndex participationIndex, OrderRepository orderRepository) {
+            // 每个用户每秒最多5次，每个商品每秒最多1万次，空闲1分钟回收，最多维护100万个Key
+            // 本地账本逐个CAS扣减，不开请求合并（单机下合并更慢，见 StockDeductionMerger）
+            // 订单每批最多500条，不满一批最多等5毫秒
+            this(new KeyedRateLimiter(5, 5, 60_000, 1_000_000),
+                 new KeyedRateLimiter(10_000, 10_000, 60_000, 10_000),
+                 stockLedger,
+                 soldOutRegistry,
+                 participationIndex,
+                 null,
+                 orderRepository,
+                 new OrderPipeline(new SeckillOrderConsumer(orderRepository, stockLedger, soldOutRegistry,
+                         participationIndex), 500, 5));
+        }
+        
+        public SeckillService(KeyedRateLimiter userLimiter, KeyedRateLimiter productLimiter,
+                              ShardedStockLedger stockLedger, SoldOutRegistry soldOutRegistry,
+                              ParticipationIndex participationIndex, StockDeductionMerger stockMerger,
+                              OrderRepository orderRepository, OrderPipeline orderPipeline) {
+            this.userLimiter = userLimiter;
+            this.productLimiter = productLimiter;
+            this.stockLedger = stockLedger;
+            this.soldOutRegistry = soldOutRegistry;
+            this.participationIndex = participationIndex;
+            this.stockMerger = stockMerger;
+            this.orderRepository = orderRepository;
+            this.orderPipeline = orderPipeline;
+        }
+        
+        /**
+         * 活动开始前预热库存
+         */
+        public void initStock(long productId, long stock) {
+            orderRepository.initStock(productId, stock);
+            stockLedger.init(productId, stock);
+            soldOutRegistry.clear(productId);
+            participationIndex.clear(productId);
+        }
+        
+        public OrderPipeline getOrderPipeline() {
+            return orderPipeline;
+        }
+        
+        public void setStageRecorder(StageRecorder stageRecorder) {
+            this.stageRecorder = stageRecorder == null ? StageRecorder.NOOP : stageRecorder;
+        }
+        
+        /**
+         * 停止合并线程和订单流水线（剩余订单会先处理完）
+         */
+        public void shutdown() {
+            if (stockMerger != null) {
+                stockMerger.close();
+            }
+            orderPipeline.close();
+        }
+        
         /**
          * 秒杀接口
          * 
@@ -39,108 +121,358 @@ public class SeckillSystem {
             if (userId == null || productId == null) {
                 return Result.fail("参数错误");
             }
+            StageRecorder recorder = stageRecorder;
+            long t = recorder.start();
+            
+            // 2. 本地售罄标记，卖完之后的请求到此为止
+            boolean soldOut = soldOutRegistry.isSoldOut(productId);
+            t = recorder.record(Stage.SOLD_OUT_CHECK, t);
+            if (soldOut) {
+                return Result.fail("已售罄");
+            }
             
-            // 2. 检查用户是否已经秒杀过（防刷）
-            String userKey = "seckill:user:" + productId + ":" + userId;
-            // Boolean hasOrdered = redisTemplate.opsForValue().setIfAbsent(userKey, "1", 1, TimeUnit.HOURS);
-            // if (!hasOrdered) {
-            //     return Result.fail("您已参与过此活动");
+            // 3. 按用户、按商品限流（公平性：一个用户刷不满整个商品的预算）
+            //    商品限流拒绝时退还用户令牌，不让商品侧的拥塞算到用户头上
+            boolean permitted = userLimiter.tryAcquire(userId);
+            if (permitted && !productLimiter.tryAcquire(productId)) {
+                userLimiter.refund(userId);
+                permitted = false;
+            }
+            t = recorder.record(Stage.RATE_LIMIT, t);
+            if (!permitted) {
+                return Result.fail("请求过于频繁");
+            }
+            
+            // 4. 检查用户是否已经秒杀过（防刷）：本地位图先挡，第一次参与才去Redis确认
+            boolean firstTime = participationIndex.checkAndMark(productId, userId);
+            // if (firstTime) {
+            //     String userKey = "seckill:user:" + productId + ":" + userId;
+            //     firstTime = redisTemplate.opsForValue().setIfAbsent(userKey, "1", 1, TimeUnit.HOURS);
             // }
+            t = recorder.record(Stage.DEDUP, t);
+            if (!firstTime) {
+                return Result.fail("您已参与过此活动");
+            }
             
-            // 3. Redis预扣库存（Lua脚本保证原子性）
-            String stockKey = "seckill:stock:" + productId;
-            Long stock = decrStock(stockKey);
-            if (stock == null || stock < 0) {
+            // 5. 本地分片库存预扣（条带CAS，不会扣成负数）
+            boolean deducted = decrStock(productId);
+            t = recorder.record(Stage.STOCK, t);
+            if (!deducted) {
+                // 账本里就是这个商品的全部库存，扣不动说明总库存空了，第一次置位时广播给其他节点
+                soldOutRegistry.markGlobalSoldOut(productId);
+                if (stockLedger.remaining(productId) > 0) {
+                    // 标记期间有回滚把库存还了回来（它的restock可能早于这次标记），撤销标记并广播补货
+                    soldOutRegistry.restock(productId);
+                }
+                participationIndex.unmark(productId, userId);
                 return Result.fail("库存不足");
             }
             
-            // 4. 发送MQ异步创建订单
+            // 6. 投递到订单流水线异步创建订单（外部MQ：rocketMQTemplate.asyncSend("seckill-topic", message)）
             SeckillMessage message = new SeckillMessage(userId, productId);
-            // rocketMQTemplate.asyncSend("seckill-topic", message);
+            boolean published = orderPipeline.publish(message);
+            recorder.record(Stage.ENQUEUE, t);
+            if (!published) {
+                stockLedger.release(productId, 1);
+                soldOutRegistry.restock(productId);
+                participationIndex.unmark(productId, userId);
+                return Result.fail("系统繁忙");
+            }
             
             return Result.success("秒杀成功，正在生成订单");
         }
         
         /**
-         * Lua脚本扣减库存
+         * 扣减库存
+         * 
+         * 单机：直接在本地分片账本上扣减；开启请求合并时，同一商品的并发请求攒成一批一次扣减
+         * 多机：每个节点预先分到一份库存配额放进本地账本，总和等于Redis中的库存，
+         *      Redis侧仍用下面的Lua脚本做原子扣减兜底
          */
-        private Long decrStock(String stockKey) {
-            String script = 
-                "if redis.call('exists', KEYS[1]) == 1 then " +
-                "    local stock = tonumber(redis.call('get', KEYS[1])); " +
-                "    if stock > 0 then " +
-                "        redis.call('decr', KEYS[1]); " +
-                "        return stock - 1; " +
-                "    else " +
-                "        return -1; " +
-                "    end " +
-                "else " +
-                "    return -1; " +
-                "end";
-            
+        private boolean decrStock(long productId) {
             // Long result = redisTemplate.execute(
-            //     new DefaultRedisScript<>(script, Long.class),
-            //     Collections.singletonList(stockKey)
+            //     new DefaultRedisScript<>(DECR_STOCK_SCRIPT, Long.class),
+            //     Collections.singletonList("seckill:stock:" + productId)
             // );
-            
-            return 100L;  // 模拟返回
+            // result == -1 即总库存扣空，与本地账本扣空一样由调用方 markGlobalSoldOut 广播
+            if (stockMerger != null) {
+                return stockMerger.deduct(productId);
+            }
+            return stockLedger.tryDecrement(productId);
         }
+        
+        /**
+         * Lua脚本扣减库存
+         */
+        private static final String DECR_STOCK_SCRIPT = 
+            "if redis.call('exists', KEYS[1]) == 1 then " +
+            "    local stock = tonumber(redis.call('get', KEYS[1])); " +
+            "    if stock > 0 then " +
+            "        redis.call('decr', KEYS[1]); " +
+            "        return stock - 1; " +
+            "    else " +
+            "        return -1; " +
+            "    end " +
+            "else " +
+            "    return -1; " +
+            "end";
+    }
+    
+    /**
+     * 秒杀链路阶段
+     */
+    public enum Stage {
+        SOLD_OUT_CHECK, RATE_LIMIT, DEDUP, STOCK, ENQUEUE
+    }
+    
+    /**
+     * 分阶段计时器 - 默认不计时，压测时注入
+     */
+    public interface StageRecorder {
+        StageRecorder NOOP = new StageRecorder() {
+            @Override
+            public long start() {
+                return 0;
+            }
+            
+            @Override
+            public long record(Stage stage, long startNanos) {
+                return 0;
+            }
+        };
+        
+        /**
+         * @return 起始时间戳
+         */
+        long start();
+        
+        /**
+         * 记录一个阶段的耗时
+         * 
+         * @return 当前时间戳，作为下一阶段的起点
+         */
+        long record(Stage stage, long startNanos);
     }
     
     /**
      * 秒杀消息
      */
     static class SeckillMessage {
-        private Long userId;
-        private Long productId;
+        private static final AtomicLong ID_GENERATOR = new AtomicLong();
+        
+        private final long messageId;   // 消息唯一ID，回滚幂等用
+        private final Long userId;
+        private final Long productId;
+        private long enqueueNanos;      // 入队时间，计算处理延迟
         
         public SeckillMessage(Long userId, Long productId) {
+            this.messageId = ID_GENERATOR.incrementAndGet();
+            this.userId = userId;
+            this.productId = productId;
+        }
+        
+        void markEnqueued() {
+            this.enqueueNanos = System.nanoTime();
+        }
+        
+        // getters
+        public long getMessageId() { return messageId; }
+        public Long getUserId() { return userId; }
+        public Long getProductId() { return productId; }
+        public long getEnqueueNanos() { return enqueueNanos; }
+    }
+    
+    /**
+     * 秒杀订单
+     */
+    static class SeckillOrder {
+        private final long orderId;
+        private final long userId;
+        private final long productId;
+        private final long createTime;
+        
+        public SeckillOrder(long orderId, long userId, long productId) {
+            this.orderId = orderId;
             this.userId = userId;
             this.productId = productId;
+            this.createTime = System.currentTimeMillis();
+        }
+        
+        // getters
+        public long getOrderId() { return orderId; }
+        public long getUserId() { return userId; }
+        public long getProductId() { return productId; }
+        public long getCreateTime() { return createTime; }
+    }
+    
+    /**
+     * 订单存储 - 批量写
+     */
+    public interface OrderRepository {
+        /**
+         * 预热商品库存（活动开始前）
+         */
+        void initStock(long productId, long stock);
+        
+        /**
+         * 同一个事务里批量创建订单并扣减真实库存，任一商品库存不足则整批回滚
+         * 
+         * INSERT INTO seckill_order (order_id, user_id, product_id, create_time) VALUES (...), (...), ...
+         * UPDATE seckill_product SET stock = stock - CASE id WHEN ? THEN ? ... END
+         * WHERE id IN (...) AND stock >= CASE id WHEN ? THEN ? ... END
+         * 
+         * @param orders 本批订单
+         * @param counts 每个商品本批要扣的件数
+         */
+        void saveBatch(List<SeckillOrder> orders, Map<Long, Integer> counts);
+    }
+    
+    /**
+     * 内存版订单存储 - 模拟数据库，压测和演示用
+     */
+    public static class InMemoryOrderRepository implements OrderRepository {
+        private final Map<Long, SeckillOrder> orders = new ConcurrentHashMap<>();
+        private final Map<Long, Long> stocks = new HashMap<>();
+        private volatile double failureRate;  // 故障注入：批量写失败的概率
+        
+        @Override
+        public synchronized void initStock(long productId, long stock) {
+            stocks.put(productId, stock);
         }
         
-        // getters and setters
+        @Override
+        public synchronized void saveBatch(List<SeckillOrder> batch, Map<Long, Integer> counts) {
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                throw new IllegalStateException("模拟数据库写入失败");
+            }
+            for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+                Long stock = stocks.get(entry.getKey());
+                if (stock == null || stock < entry.getValue()) {
+                    throw new IllegalStateException("真实库存不足: productId=" + entry.getKey());
+                }
+            }
+            counts.forEach((productId, count) -> stocks.merge(productId, (long) -count, Long::sum));
+            for (SeckillOrder order : batch) {
+                orders.put(order.getOrderId(), order);
+            }
+        }
+        
+        public void setFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+        }
+        
+        public synchronized long getStock(long productId) {
+            return stocks.getOrDefault(productId, 0L);
+        }
+        
+        public Collection<SeckillOrder> getOrders() {
+            return orders.values();
+        }
     }
     
     /**
-     * MQ消费者 - 创建订单
+     * 订单消费者 - 批量创建订单
+     * 
+     * 外部MQ版本：@RocketMQMessageListener(topic = "seckill-topic", consumerGroup = "seckill-order-consumer")
+     * 监听到消息后同样调用 onMessages；进程内版本由 OrderPipeline 单线程批量投递。
      */
     public static class SeckillOrderConsumer {
-        /*
-        @RocketMQMessageListener(
-            topic = "seckill-topic",
-            consumerGroup = "seckill-order-consumer"
-        )
-        public class OrderListener implements RocketMQListener<SeckillMessage> {
-            
+        private final OrderRepository repository;
+        private final ShardedStockLedger stockLedger;
+        private final SoldOutRegistry soldOutRegistry;
+        private final ParticipationIndex participationIndex;
+        private static final int ROLLBACK_WINDOW = 65_536;
+        
+        // 最近回滚过的消息ID，保证重复投递时幂等；只保留最近ROLLBACK_WINDOW个，重投不会隔这么久
+        private final Set<Long> rolledBack = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
             @Override
-            public void onMessage(SeckillMessage message) {
-                try {
-                    // 1. 创建订单
-                    createOrder(message);
-                    
-                    // 2. 扣减真实库存
-                    deductStock(message.getProductId());
-                    
-                } catch (Exception e) {
-                    // 3. 失败回滚Redis库存
-                    rollbackStock(message.getProductId());
-                    throw e;
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > ROLLBACK_WINDOW;
+            }
+        });
+        private final AtomicLong rolledBackCount = new AtomicLong();
+        private final AtomicLong orderIdGenerator = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        
+        public SeckillOrderConsumer(OrderRepository repository, ShardedStockLedger stockLedger,
+                                    SoldOutRegistry soldOutRegistry, ParticipationIndex participationIndex) {
+            this.repository = repository;
+            this.stockLedger = stockLedger;
+            this.soldOutRegistry = soldOutRegistry;
+            this.participationIndex = participationIndex;
+        }
+        
+        /**
+         * 处理一批消息
+         * 
+         * 1. 整批创建订单 + 一条语句扣减真实库存（同一事务）
+         * 2. 整批失败时逐条重试，只回滚真正失败的那几条
+         */
+        public void onMessages(List<SeckillMessage> messages) {
+            try {
+                writeBatch(messages);
+            } catch (RuntimeException batchError) {
+                for (SeckillMessage message : messages) {
+                    try {
+                        writeBatch(Collections.singletonList(message));
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        rollbackStock(message);
+                    }
                 }
             }
         }
-        */
         
-        private void createOrder(SeckillMessage message) {
-            System.out.println("创建订单: userId=" + message.userId + ", productId=" + message.productId);
+        private void writeBatch(List<SeckillMessage> messages) {
+            repository.saveBatch(createOrders(messages), deductStock(messages));
         }
         
-        private void deductStock(Long productId) {
-            System.out.println("扣减库存: productId=" + productId);
+        /**
+         * 组装本批订单
+         */
+        private List<SeckillOrder> createOrders(List<SeckillMessage> messages) {
+            List<SeckillOrder> orders = new ArrayList<>(messages.size());
+            for (SeckillMessage message : messages) {
+                orders.add(new SeckillOrder(orderIdGenerator.incrementAndGet(),
+                        message.getUserId(), message.getProductId()));
+            }
+            return orders;
         }
         
-        private void rollbackStock(Long productId) {
-            System.out.println("回滚库存: productId=" + productId);
+        /**
+         * 按商品汇总本批要扣的真实库存
+         */
+        private Map<Long, Integer> deductStock(List<SeckillMessage> messages) {
+            Map<Long, Integer> counts = new HashMap<>();
+            for (SeckillMessage message : messages) {
+                counts.merge(message.getProductId(), 1, Integer::sum);
+            }
+            return counts;
+        }
+        
+        /**
+         * 回滚Redis/本地库存（按消息ID幂等，重复调用只生效一次）
+         */
+        private void rollbackStock(SeckillMessage message) {
+            synchronized (rolledBack) {
+                if (!rolledBack.add(message.getMessageId())) {
+                    return;
+                }
+            }
+            rolledBackCount.incrementAndGet();
+            // redisTemplate.opsForValue().increment("seckill:stock:" + message.getProductId());
+            // redisTemplate.delete("seckill:user:" + message.getProductId() + ":" + message.getUserId());
+            stockLedger.release(message.getProductId(), 1);
+            soldOutRegistry.restock(message.getProductId());
+            participationIndex.unmark(message.getProductId(), message.getUserId());
+        }
+        
+        public long getFailedCount() {
+            return failed.get();
+        }
+        
+        public long getRolledBackCount() {
+            return rolledBackCount.get();
         }
     }
     
@@ -211,6 +543,14 @@ public class SeckillSystem {
             return result;
         }
         
+        public boolean isSuccess() {
+            return success;
+        }
+        
+        public String getMessage() {
+            return message;
+        }
+        
         @Override
         public String toString() {
             return "Result{success=" + success + ", message='" + message + "'}";
@@ -222,6 +562,7 @@ public class SeckillSystem {
      */
     public static void main(String[] args) throws InterruptedException {
         SeckillService service = new SeckillService();
+        service.initStock(1001L, 50);  // 50件库存
         RateLimiter rateLimiter = new RateLimiter(100, 10);  // 容量100，每秒10个
         
         // 模拟100个用户秒杀
@@ -250,6 +591,10 @@ public class SeckillSystem {
         
         latch.await();
         executor.shutdown();
+        
+        service.getOrderPipeline().awaitDrained(5000);
+        System.out.println(service.getOrderPipeline().metrics());
+        service.shutdown();
     }
 }
 
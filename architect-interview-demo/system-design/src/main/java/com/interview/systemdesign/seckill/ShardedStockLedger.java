@@ -0,0 +1,186 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地分片库存账本
+ *
+ * 问题：
+ * 所有请求都扣同一个库存Key（Redis热点Key / 单个AtomicLong），CAS冲突随核数线性上升。
+ *
+ * 方案（类似LongAdder的分段思想）：
+ * 1. 每个商品的库存拆成N个条带（stripe），线程按哈希落到自己的条带上扣减
+ * 2. 条带之间用缓存行填充隔开，避免伪共享
+ * 3. 条带只会CAS扣减到0，永远不会为负 —— 不可能超卖
+ * 4. 某个条带扣空后，加锁把剩余库存收拢再平均分回各条带（rebalance）
+ * 5. 库存只在持锁时跨条带搬运，所以持锁看到全部为0就是真的卖完了
+ */
+public class ShardedStockLedger {
+
+    private static final int PAD = 16;  // 每个条带占16个long = 128字节，跨两个缓存行
+
+    private final int stripes;
+    private final Map<Long, ProductStock> products = new ConcurrentHashMap<>();
+
+    public ShardedStockLedger() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedStockLedger(int stripes) {
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = n;
+    }
+
+    /**
+     * 初始化（或重置）商品库存
+     */
+    public void init(long productId, long stock) {
+        if (stock < 0) {
+            throw new IllegalArgumentException("stock must not be negative");
+        }
+        ProductStock productStock = new ProductStock(stripes);
+        productStock.distribute(stock);
+        products.put(productId, productStock);
+    }
+
+    /**
+     * 扣减1件库存
+     *
+     * @return 扣减成功返回true，库存不足返回false
+     */
+    public boolean tryDecrement(long productId) {
+        return take(productId, 1) == 1;
+    }
+
+    /**
+     * 批量扣减，库存不足时尽量多扣
+     *
+     * @return 实际扣到的数量（0 ~ want）
+     */
+    public long take(long productId, long want) {
+        ProductStock stock = products.get(productId);
+        if (stock == null || want <= 0) {
+            return 0;
+        }
+        return stock.take(want);
+    }
+
+    /**
+     * 归还库存（订单失败回滚）
+     */
+    public void release(long productId, long count) {
+        ProductStock stock = products.get(productId);
+        if (stock != null && count > 0) {
+            stock.add(count);
+        }
+    }
+
+    /**
+     * 剩余库存（各条带求和，仅用于展示和对账，不保证瞬时精确）
+     */
+    public long remaining(long productId) {
+        ProductStock stock = products.get(productId);
+        return stock == null ? 0 : stock.sum();
+    }
+
+    /**
+     * 单个商品的分片库存
+     */
+    private static final class ProductStock {
+        private final AtomicLongArray cells;
+        private final int mask;
+
+        ProductStock(int stripes) {
+            this.cells = new AtomicLongArray(stripes * PAD);
+            this.mask = stripes - 1;
+        }
+
+        long take(long want) {
+            int home = ThreadLocalRandom.current().nextInt() & mask;
+            long taken = 0;
+
+            while (taken < want) {
+                // 快路径：只扣自己的条带
+                long got = takeFrom(home, want - taken);
+                if (got > 0) {
+                    taken += got;
+                    continue;
+                }
+
+                // 慢路径：自己的条带空了，加锁收拢库存重新分配
+                synchronized (this) {
+                    long total = drain();
+                    if (total == 0) {
+                        break;  // 持锁确认全部条带为0，卖完
+                    }
+                    long grant = Math.min(total, want - taken);
+                    taken += grant;
+                    distribute(total - grant);
+                }
+            }
+            return taken;
+        }
+
+        void add(long count) {
+            int stripe = ThreadLocalRandom.current().nextInt() & mask;
+            cells.getAndAdd(stripe * PAD, count);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i <= mask; i++) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+
+        /**
+         * 从单个条带扣减，不会扣到负数
+         */
+        private long takeFrom(int stripe, long want) {
+            int index = stripe * PAD;
+            while (true) {
+                long current = cells.get(index);
+                if (current <= 0) {
+                    return 0;
+                }
+                long got = Math.min(current, want);
+                if (cells.compareAndSet(index, current, current - got)) {
+                    return got;
+                }
+            }
+        }
+
+        /**
+         * 把所有条带清零并返回总量（持锁调用）
+         */
+        private long drain() {
+            long total = 0;
+            for (int i = 0; i <= mask; i++) {
+                total += cells.getAndSet(i * PAD, 0);
+            }
+            return total;
+        }
+
+        /**
+         * 把库存平均分到各条带（持锁调用，或初始化时调用）
+         */
+        private void distribute(long total) {
+            int n = mask + 1;
+            long share = total / n;
+            long extra = total % n;
+            for (int i = 0; i < n; i++) {
+                long amount = share + (i < extra ? 1 : 0);
+                if (amount > 0) {
+                    cells.getAndAdd(i * PAD, amount);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.interview.systemdesign.seckill;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地售罄标记
+ *
+ * 问题：
+ * 库存卖完之后，后面99%的请求仍然要走限流、防重、扣库存，白白消耗资源。
+ *
+ * 方案：
+ * 1. 每个商品一个bit，库存第一次扣空时CAS置位
+ * 2. 秒杀入口先读这个bit，已售罄直接返回 —— 只需一次volatile读
+ * 3. 总库存扣空（单机是本地账本扣空，多机是Redis Lua返回-1）才广播给其他节点，置位成功的那一次（且只有那一次）广播；
+ *    多机下本节点配额扣空但总库存还有时只标记本地
+ * 4. 回滚把库存还回来时清除标记，标记是全局售罄广播出去的，清除也要广播
+ *
+ * 标记和回滚之间没有顺序保证：回滚的 release + clear 可能先于一次失败扣减的标记完成，
+ * 所以调用方标记之后要再看一眼库存，还有剩余就 restock（见 SeckillService.seckill）。
+ *
+ * 商品ID小于denseLimit时走位图，更大的ID退化为并发Set。
+ */
+public class SoldOutRegistry {
+
+    private final AtomicLongArray bitmap;
+    private final long denseLimit;
+    private final Set<Long> sparse = ConcurrentHashMap.newKeySet();
+    private volatile SoldOutNotifier notifier = SoldOutNotifier.NOOP;
+
+    public SoldOutRegistry() {
+        this(1 << 20);  // 100万个商品以内走位图，占128KB
+    }
+
+    public SoldOutRegistry(int denseLimit) {
+        this.bitmap = new AtomicLongArray((denseLimit + 63) >>> 6);
+        this.denseLimit = denseLimit;
+    }
+
+    public void setNotifier(SoldOutNotifier notifier) {
+        this.notifier = notifier == null ? SoldOutNotifier.NOOP : notifier;
+    }
+
+    /**
+     * 是否已售罄（热路径，一次volatile读）
+     */
+    public boolean isSoldOut(long productId) {
+        if (productId >= 0 && productId < denseLimit) {
+            return (bitmap.get((int) (productId >>> 6)) & (1L << productId)) != 0;
+        }
+        return !sparse.isEmpty() && sparse.contains(productId);
+    }
+
+    /**
+     * 本节点的库存配额扣空时调用，只标记本地（其他节点可能还有配额）
+     *
+     * @return 是否是第一次置位
+     */
+    public boolean markSoldOut(long productId) {
+        return set(productId);
+    }
+
+    /**
+     * 总库存扣空时调用（本地账本扣空，或多机时Redis Lua脚本返回-1）
+     *
+     * @return 是否是第一次置位（第一次置位才会通知其他节点）
+     */
+    public boolean markGlobalSoldOut(long productId) {
+        boolean first = set(productId);
+        if (first) {
+            notifier.onSoldOut(productId);
+        }
+        return first;
+    }
+
+    /**
+     * 收到其他节点的售罄通知（不再转发，避免广播风暴）
+     */
+    public void onRemoteSoldOut(long productId) {
+        set(productId);
+    }
+
+    /**
+     * 清除本地售罄标记（补货、本节点库存回来了时调用）
+     *
+     * @return 是否真的清掉了一个标记
+     */
+    public boolean clear(long productId) {
+        if (productId >= 0 && productId < denseLimit) {
+            int index = (int) (productId >>> 6);
+            long bit = 1L << productId;
+            long current;
+            do {
+                current = bitmap.get(index);
+                if ((current & bit) == 0) {
+                    return false;
+                }
+            } while (!bitmap.compareAndSet(index, current, current & ~bit));
+            return true;
+        }
+        return sparse.remove(productId);
+    }
+
+    /**
+     * 订单失败回滚库存时调用：清除本地标记，并通知其他节点库存回来了
+     */
+    public void restock(long productId) {
+        if (clear(productId)) {
+            notifier.onRestock(productId);
+        }
+    }
+
+    /**
+     * 收到其他节点的补货通知（不再转发）
+     */
+    public void onRemoteRestock(long productId) {
+        clear(productId);
+    }
+
+    private boolean set(long productId) {
+        if (productId >= 0 && productId < denseLimit) {
+            int index = (int) (productId >>> 6);
+            long bit = 1L << productId;
+            long current;
+            do {
+                current = bitmap.get(index);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+            } while (!bitmap.compareAndSet(index, current, current | bit));
+            return true;
+        }
+        return sparse.add(productId);
+    }
+
+    /**
+     * 售罄通知器 - 可插拔
+     */
+    public interface SoldOutNotifier {
+        SoldOutNotifier NOOP = productId -> { };
+
+        void onSoldOut(long productId);
+
+        default void onRestock(long productId) {
+        }
+    }
+
+    /**
+     * Redis Pub/Sub 通知器
+     */
+    public static class RedisSoldOutNotifier implements SoldOutNotifier {
+        // private RedisTemplate<String, Object> redisTemplate;
+
+        @Override
+        public void onSoldOut(long productId) {
+            // redisTemplate.convertAndSend("seckill:soldout", productId);
+            // 其他节点订阅该频道，收到后调用 registry.onRemoteSoldOut(productId)
+        }
+
+        @Override
+        public void onRestock(long productId) {
+            // redisTemplate.convertAndSend("seckill:restock", productId);
+            // 其他节点订阅该频道，收到后调用 registry.onRemoteRestock(productId)
+        }
+    }
+
+    /**
+     * 进程内广播通知器 - 单机模拟多节点、压测时使用
+     */
+    public static class LocalBroadcastNotifier implements SoldOutNotifier {
+        private final List<SoldOutRegistry> peers = new CopyOnWriteArrayList<>();
+
+        public void join(SoldOutRegistry registry) {
+            peers.add(registry);
+            registry.setNotifier(this);
+        }
+
+        @Override
+        public void onSoldOut(long productId) {
+            for (SoldOutRegistry peer : peers) {
+                peer.onRemoteSoldOut(productId);
+            }
+        }
+
+        @Override
+        public void onRestock(long productId) {
+            for (SoldOutRegistry peer : peers) {
+                peer.onRemoteRestock(productId);
+            }
+        }
+    }
+}
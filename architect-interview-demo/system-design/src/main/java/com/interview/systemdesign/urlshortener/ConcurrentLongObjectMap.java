@@ -0,0 +1,290 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * long主键的并发哈希表
+ *
+ * 相比 ConcurrentHashMap&lt;Long, V&gt;：
+ * 1. key直接存long[]，不装箱，也没有每个Entry一个Node对象
+ * 2. 分段 + 开放寻址（线性探测），删除用反向移位，不留墓碑
+ * 3. 读走StampedLock乐观读，写少读多时读几乎无开销
+ *
+ * Long.MIN_VALUE 作为空槽标记，不能作为key。
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+
+    public ConcurrentLongObjectMap() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentLongObjectMap(int concurrency) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    public V get(long key) {
+        long h = hash(key);
+        return segmentFor(h).get(key, (int) h);
+    }
+
+    /**
+     * @return 旧值，没有则为null
+     */
+    public V put(long key, V value) {
+        checkKey(key, value);
+        long h = hash(key);
+        return segmentFor(h).put(key, (int) h, value, false);
+    }
+
+    /**
+     * @return 已存在的值，插入成功返回null
+     */
+    public V putIfAbsent(long key, V value) {
+        checkKey(key, value);
+        long h = hash(key);
+        return segmentFor(h).put(key, (int) h, value, true);
+    }
+
+    public V remove(long key) {
+        long h = hash(key);
+        return segmentFor(h).remove(key, (int) h);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 遍历（每个分段内是一致快照，分段之间不保证）
+     */
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(consumer);
+        }
+    }
+
+    /**
+     * 遍历回调，避免装箱
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    private Segment<V> segmentFor(long h) {
+        return segments[(int) (h >>> 32) & segmentMask];
+    }
+
+    private static void checkKey(long key, Object value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+        }
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+    }
+
+    /**
+     * murmur3 fmix64
+     */
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 一张表：keys和values放在同一个对象里，扩容时整体替换，乐观读不会看到长度不一致的两个数组
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    private static final class Segment<V> {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+
+        V get(long key, int h) {
+            long stamp = lock.tryOptimisticRead();
+            Object value = find(table, key, h);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    value = find(table, key, h);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return cast(value);
+        }
+
+        V put(long key, int h, V value, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = h & t.mask;
+                while (t.keys[slot] != EMPTY) {
+                    if (t.keys[slot] == key) {
+                        Object old = t.values[slot];
+                        if (!onlyIfAbsent) {
+                            t.values[slot] = value;
+                        }
+                        return cast(old);
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+                t.values[slot] = value;
+                t.keys[slot] = key;
+                if (++size > (t.keys.length >>> 2) * 3) {
+                    resize(t);
+                }
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        V remove(long key, int h) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = h & t.mask;
+                while (t.keys[slot] != EMPTY) {
+                    if (t.keys[slot] == key) {
+                        Object old = t.values[slot];
+                        shiftBack(t, slot);
+                        size--;
+                        return cast(old);
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void forEach(EntryConsumer<? super V> consumer) {
+            long[] keys;
+            Object[] values;
+            long stamp = lock.readLock();
+            try {
+                keys = table.keys.clone();
+                values = table.values.clone();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    consumer.accept(keys[i], cast(values[i]));
+                }
+            }
+        }
+
+        /**
+         * 乐观读时表可能正在被修改，最多探测一整圈，保证不会死循环
+         */
+        private static Object find(Table t, long key, int h) {
+            int slot = h & t.mask;
+            for (int probes = 0; probes <= t.mask; probes++) {
+                long k = t.keys[slot];
+                if (k == EMPTY) {
+                    return null;
+                }
+                if (k == key) {
+                    return t.values[slot];
+                }
+                slot = (slot + 1) & t.mask;
+            }
+            return null;
+        }
+
+        /**
+         * 反向移位删除：把后面本该更靠前的元素挪进空位，保持探测链连续
+         */
+        private static void shiftBack(Table t, int slot) {
+            int gap = slot;
+            int next = (gap + 1) & t.mask;
+            while (t.keys[next] != EMPTY) {
+                int home = (int) hash(t.keys[next]) & t.mask;
+                // home不在(gap, next]区间内，说明可以挪到gap
+                boolean movable = gap <= next ? (home <= gap || home > next) : (home <= gap && home > next);
+                if (movable) {
+                    t.keys[gap] = t.keys[next];
+                    t.values[gap] = t.values[next];
+                    gap = next;
+                }
+                next = (next + 1) & t.mask;
+            }
+            t.keys[gap] = EMPTY;
+            t.values[gap] = null;
+        }
+
+        private void resize(Table old) {
+            Table t = new Table(old.keys.length << 1);
+            for (int i = 0; i < old.keys.length; i++) {
+                long k = old.keys[i];
+                if (k != EMPTY) {
+                    int slot = (int) hash(k) & t.mask;
+                    while (t.keys[slot] != EMPTY) {
+                        slot = (slot + 1) & t.mask;
+                    }
+                    t.keys[slot] = k;
+                    t.values[slot] = old.values[i];
+                }
+            }
+            table = t;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> V cast(Object value) {
+            return (V) value;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongConsumer;
+
+/**
+ * 短链过期时间轮（粗粒度桶）
+ *
+ * 问题：
+ * 带有效期的短链如果每条都存精确过期时间，回收时只能全表扫描。
+ *
+ * 方案：
+ * 1. 过期时间向上取整到桶边界（小时 / 天），同一桶的ID放在一起
+ * 2. 每个ID只记所属的桶，判断是否过期 = 一次long主键查找 + 比较桶的截止时间，不用查主存储
+ * 3. 回收时按截止时间取出所有到期的桶，整桶处理，不扫描未过期的数据
+ * 4. 改有效期只改ID -> 桶的映射，旧桶里的残留在回收时发现映射已变就跳过（惰性删除）
+ *
+ * 代价：过期最多晚一个桶宽生效（按小时分桶最多晚1小时）。
+ */
+public class ExpiryWheel {
+
+    public static final long HOUR = 3600_000L;
+    public static final long DAY = 24 * HOUR;
+
+    private final long bucketMillis;
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final ConcurrentLongObjectMap<Bucket> idToBucket = new ConcurrentLongObjectMap<>();
+
+    /**
+     * @param bucketMillis 桶宽，一般用 HOUR 或 DAY
+     */
+    public ExpiryWheel(long bucketMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucketMillis must be positive");
+        }
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * 设置（或修改）ID的过期时间
+     */
+    public void schedule(long id, long expireAtMillis) {
+        long deadline = Math.floorDiv(expireAtMillis + bucketMillis - 1, bucketMillis) * bucketMillis;
+        while (true) {
+            Bucket bucket = buckets.computeIfAbsent(deadline, Bucket::new);
+            // 先改映射再入桶：入桶成功时回收线程一定能看到映射，不会漏删
+            idToBucket.put(id, bucket);
+            if (bucket.add(id)) {
+                return;
+            }
+            // 桶刚被回收线程摘走，重新建一个
+            buckets.remove(deadline, bucket);
+        }
+    }
+
+    /**
+     * 取消过期，变成永久链接
+     */
+    public void cancel(long id) {
+        idToBucket.remove(id);
+    }
+
+    /**
+     * 是否设置了过期时间（尚未回收）
+     */
+    public boolean isScheduled(long id) {
+        return idToBucket.get(id) != null;
+    }
+
+    /**
+     * 没有设置过期时间的ID永远返回false
+     */
+    public boolean isExpired(long id, long nowMillis) {
+        Bucket bucket = idToBucket.get(id);
+        return bucket != null && nowMillis >= bucket.deadline;
+    }
+
+    /**
+     * 回收所有已到期的桶
+     *
+     * @param reclaimer 对每个真正过期的ID调用一次（删存储、清缓存）
+     * @return 回收的ID数
+     */
+    public int reclaim(long nowMillis, LongConsumer reclaimer) {
+        int reclaimed = 0;
+        ConcurrentNavigableMap<Long, Bucket> due = buckets.headMap(nowMillis, true);
+        for (Map.Entry<Long, Bucket> entry : due.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (!buckets.remove(entry.getKey(), bucket)) {
+                continue;  // 另一个回收线程先拿到了
+            }
+            long[] ids = bucket.drain();
+            for (long id : ids) {
+                // 只有映射仍指向本桶才回收：中途改过有效期的ID已经属于别的桶
+                if (idToBucket.get(id) == bucket) {
+                    // 先删存储再摘映射：映射还在，isExpired 就一直返回true，删除过程中不会把过期链接放出去
+                    reclaimer.accept(id);
+                    idToBucket.remove(id);
+                    reclaimed++;
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 设置了过期时间、尚未回收的ID数
+     */
+    public int size() {
+        return idToBucket.size();
+    }
+
+    /**
+     * 一个桶：截止时间相同的ID
+     */
+    private static final class Bucket {
+        private final long deadline;
+        private long[] ids = new long[16];
+        private int size;
+        private boolean drained;
+
+        Bucket(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false 表示桶已被回收
+         */
+        synchronized boolean add(long id) {
+            if (drained) {
+                return false;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+            }
+            ids[size++] = id;
+            return true;
+        }
+
+        synchronized long[] drain() {
+            drained = true;
+            long[] result = Arrays.copyOf(ids, size);
+            ids = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 热点链接前置缓存
+ *
+ * 1. 直接映射：id哈希到固定槽位，一次数组读 + 一次id比较，没有锁、没有链表
+ * 2. 槽位冲突直接覆盖，热点链接访问频繁，被挤掉后下一次就会重新占回来
+ * 3. 条目不可变，读到的一定是完整的 (id, longUrl)
+ */
+public class HotLinkCache {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    /**
+     * @param capacity 槽位数，向上取2的幂
+     */
+    public HotLinkCache(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+    }
+
+    /**
+     * @return 长URL，未命中返回null
+     */
+    public String get(long id) {
+        Entry entry = slots.getAcquire(slot(id));
+        return entry != null && entry.id == id ? entry.longUrl : null;
+    }
+
+    public void put(long id, String longUrl) {
+        slots.setRelease(slot(id), new Entry(id, longUrl));
+    }
+
+    public void invalidate(long id) {
+        int slot = slot(id);
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.id == id) {
+            slots.compareAndSet(slot, entry, null);
+        }
+    }
+
+    private int slot(long id) {
+        return (int) ConcurrentLongObjectMap.hash(id) & mask;
+    }
+
+    private static final class Entry {
+        final long id;
+        final String longUrl;
+
+        Entry(long id, String longUrl) {
+            this.id = id;
+            this.longUrl = longUrl;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单链接近似分析
+ *
+ * 问题：
+ * UrlStats 只有访问次数。独立访客、访问间隔分位数、来源排行如果靠完整访问日志算，存储和计算都跟访问量线性增长。
+ *
+ * 方案：每个链接一组固定大小的概率数据结构（约5KB），只在有访问时才创建
+ * 1. HyperLogLog：独立访客数，1024个寄存器，标准误差约3%
+ * 2. DDSketch：访问间隔分位数，相对误差5%，256个对数桶覆盖1ms到数年
+ * 3. Count-Min Sketch + Top-K：来源（referrer）频次估计和热门来源
+ *
+ * 三种结构都只用原子数组，没有锁；都可以逐桶相加合并，多节点各自统计后把 toBytes() 发给汇总节点 merge 即可。
+ */
+public class LinkAnalytics {
+
+    private final ConcurrentLongObjectMap<LinkSketch> sketches = new ConcurrentLongObjectMap<>();
+
+    /**
+     * 记录一次访问
+     *
+     * @param visitorId 访客标识（cookie / 设备ID 的哈希），只用于去重计数
+     * @param referrer 来源，可以为null
+     */
+    public void record(long id, long visitorId, String referrer, long visitTimeMillis) {
+        sketchFor(id).record(visitorId, referrer, visitTimeMillis);
+    }
+
+    /**
+     * @return 分析报告，没有访问过返回null
+     */
+    public LinkReport report(long id, int topReferrers) {
+        LinkSketch sketch = sketches.get(id);
+        return sketch == null ? null : sketch.report(topReferrers);
+    }
+
+    /**
+     * 序列化某个链接的sketch，用于跨节点合并
+     */
+    public byte[] export(long id) {
+        LinkSketch sketch = sketches.get(id);
+        return sketch == null ? null : sketch.toBytes();
+    }
+
+    /**
+     * 合并其他节点导出的sketch
+     */
+    public void merge(long id, byte[] remote) {
+        sketchFor(id).merge(LinkSketch.fromBytes(remote));
+    }
+
+    public void remove(long id) {
+        sketches.remove(id);
+    }
+
+    private LinkSketch sketchFor(long id) {
+        LinkSketch sketch = sketches.get(id);
+        if (sketch == null) {
+            LinkSketch created = new LinkSketch();
+            sketch = sketches.putIfAbsent(id, created);
+            if (sketch == null) {
+                sketch = created;
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * 分析报告
+     */
+    public static class LinkReport {
+        private final long visits;
+        private final long uniqueVisitors;
+        private final long interArrivalP50;
+        private final long interArrivalP90;
+        private final long interArrivalP99;
+        private final List<Map.Entry<String, Long>> topReferrers;
+
+        LinkReport(long visits, long uniqueVisitors, long interArrivalP50, long interArrivalP90,
+                   long interArrivalP99, List<Map.Entry<String, Long>> topReferrers) {
+            this.visits = visits;
+            this.uniqueVisitors = uniqueVisitors;
+            this.interArrivalP50 = interArrivalP50;
+            this.interArrivalP90 = interArrivalP90;
+            this.interArrivalP99 = interArrivalP99;
+            this.topReferrers = topReferrers;
+        }
+
+        public long getVisits() { return visits; }
+        public long getUniqueVisitors() { return uniqueVisitors; }
+        public long getInterArrivalP50() { return interArrivalP50; }
+        public long getInterArrivalP90() { return interArrivalP90; }
+        public long getInterArrivalP99() { return interArrivalP99; }
+        public List<Map.Entry<String, Long>> getTopReferrers() { return topReferrers; }
+
+        @Override
+        public String toString() {
+            return "LinkReport{" +
+                    "visits=" + visits +
+                    ", uniqueVisitors≈" + uniqueVisitors +
+                    ", interArrivalMs(p50/p90/p99)=" + interArrivalP50 + "/" + interArrivalP90 + "/" + interArrivalP99 +
+                    ", topReferrers=" + topReferrers +
+                    '}';
+        }
+    }
+
+    /**
+     * 单个链接的全部sketch
+     */
+    static class LinkSketch {
+        private static final byte VERSION = 1;
+
+        private final LongAdder visits = new LongAdder();
+        private final AtomicLong lastVisitTime = new AtomicLong();
+        private final HyperLogLog visitors = new HyperLogLog();
+        private final DDSketch interArrival = new DDSketch();
+        private final CountMinTopK referrers = new CountMinTopK();
+
+        void record(long visitorId, String referrer, long visitTimeMillis) {
+            visits.increment();
+            visitors.add(visitorId);
+            long previous = lastVisitTime.getAndAccumulate(visitTimeMillis, Math::max);
+            if (previous != 0 && visitTimeMillis >= previous) {
+                interArrival.add(visitTimeMillis - previous);
+            }
+            if (referrer != null) {
+                referrers.add(referrer);
+            }
+        }
+
+        LinkReport report(int topReferrers) {
+            return new LinkReport(visits.sum(), visitors.estimate(),
+                    interArrival.quantile(0.5), interArrival.quantile(0.9), interArrival.quantile(0.99),
+                    referrers.top(topReferrers));
+        }
+
+        void merge(LinkSketch other) {
+            visits.add(other.visits.sum());
+            lastVisitTime.accumulateAndGet(other.lastVisitTime.get(), Math::max);
+            visitors.merge(other.visitors);
+            interArrival.merge(other.interArrival);
+            referrers.merge(other.referrers);
+        }
+
+        byte[] toBytes() {
+            List<byte[]> names = referrers.candidateNames();
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 16 + HyperLogLog.BYTES + DDSketch.BYTES
+                    + CountMinTopK.bytes(names));
+            buffer.put(VERSION);
+            buffer.putLong(visits.sum());
+            buffer.putLong(lastVisitTime.get());
+            visitors.writeTo(buffer);
+            interArrival.writeTo(buffer);
+            referrers.writeTo(buffer, names);
+            return buffer.array();
+        }
+
+        static LinkSketch fromBytes(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.get() != VERSION) {
+                throw new IllegalArgumentException("unsupported sketch version");
+            }
+            LinkSketch sketch = new LinkSketch();
+            sketch.visits.add(buffer.getLong());
+            sketch.lastVisitTime.set(buffer.getLong());
+            sketch.visitors.readFrom(buffer);
+            sketch.interArrival.readFrom(buffer);
+            sketch.referrers.readFrom(buffer);
+            return sketch;
+        }
+    }
+
+    /**
+     * HyperLogLog，p = 10
+     *
+     * 寄存器最大值 64 - p + 1 = 55，一个字节够用；4个寄存器打包进一个int，用CAS更新。
+     * 寄存器只增不减，大部分访问发现不需要更新就直接返回，CAS很少发生。
+     */
+    static class HyperLogLog {
+        private static final int P = 10;
+        private static final int M = 1 << P;
+        private static final int BYTES = M;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+        private final AtomicIntegerArray registers = new AtomicIntegerArray(M / 4);
+
+        void add(long item) {
+            long hash = ConcurrentLongObjectMap.hash(item ^ 0x5bd1e9955bd1e995L);
+            int index = (int) (hash >>> (64 - P));
+            int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+            update(index, rank);
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < M; i++) {
+                int value = register(i);
+                sum += 1.0 / (1L << value);
+                if (value == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = ALPHA * M * M / sum;
+            if (estimate <= 2.5 * M && zeros > 0) {
+                estimate = M * Math.log((double) M / zeros);  // 小基数用线性计数修正
+            }
+            return Math.round(estimate);
+        }
+
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < M; i++) {
+                update(i, other.register(i));
+            }
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            for (int i = 0; i < M; i++) {
+                buffer.put((byte) register(i));
+            }
+        }
+
+        void readFrom(ByteBuffer buffer) {
+            for (int i = 0; i < M; i++) {
+                update(i, buffer.get());
+            }
+        }
+
+        private int register(int index) {
+            return (registers.get(index >>> 2) >>> ((index & 3) << 3)) & 0xFF;
+        }
+
+        private void update(int index, int rank) {
+            int word = index >>> 2;
+            int shift = (index & 3) << 3;
+            while (true) {
+                int current = registers.get(word);
+                if (((current >>> shift) & 0xFF) >= rank) {
+                    return;
+                }
+                int updated = (current & ~(0xFF << shift)) | (rank << shift);
+                if (registers.compareAndSet(word, current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * DDSketch：对数分桶，任一分位数的相对误差不超过 ALPHA
+     *
+     * 桶i覆盖 (gamma^(i-1), gamma^i]，gamma = (1+α)/(1-α)；值为0单独计数，超出范围的落到最后一个桶。
+     */
+    static class DDSketch {
+        private static final double ALPHA = 0.05;
+        private static final double GAMMA = (1 + ALPHA) / (1 - ALPHA);
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+        private static final int BUCKETS = 256;  // gamma^255 ≈ 1.2e11 ms
+        private static final int BYTES = 8 + BUCKETS * 8;
+
+        private final AtomicLong zeroCount = new AtomicLong();
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void add(long value) {
+            if (value <= 0) {
+                zeroCount.incrementAndGet();
+                return;
+            }
+            int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+            counts.incrementAndGet(Math.min(index, BUCKETS - 1));
+        }
+
+        /**
+         * @return 分位数估计值，没有数据返回0
+         */
+        long quantile(double q) {
+            long zeros = zeroCount.get();
+            long total = zeros;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) (q * (total - 1));
+            if (rank < zeros) {
+                return 0;
+            }
+            long seen = zeros;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen > rank) {
+                    // 取桶的对数中点，保证相对误差 <= ALPHA
+                    return Math.round(2 * Math.pow(GAMMA, i) / (GAMMA + 1));
+                }
+            }
+            return Math.round(Math.pow(GAMMA, BUCKETS - 1));
+        }
+
+        void merge(DDSketch other) {
+            zeroCount.addAndGet(other.zeroCount.get());
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = other.counts.get(i);
+                if (count != 0) {
+                    counts.addAndGet(i, count);
+                }
+            }
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.putLong(zeroCount.get());
+            for (int i = 0; i < BUCKETS; i++) {
+                buffer.putLong(counts.get(i));
+            }
+        }
+
+        void readFrom(ByteBuffer buffer) {
+            zeroCount.addAndGet(buffer.getLong());
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.addAndGet(i, buffer.getLong());
+            }
+        }
+    }
+
+    /**
+     * Count-Min Sketch（4 x 128）+ Top-K候选
+     *
+     * 频次估计只会偏大，误差上界约 e/128 ≈ 2% 的总访问量；
+     * Top-K候选槽位用CAS替换，新来源的估计值超过当前最小候选时顶替它。
+     */
+    static class CountMinTopK {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 128;
+        private static final int K = 10;
+
+        private final AtomicIntegerArray table = new AtomicIntegerArray(DEPTH * WIDTH);
+        private final AtomicReferenceArray<Candidate> candidates = new AtomicReferenceArray<>(K);
+
+        void add(String referrer) {
+            offer(referrer, increment(referrer, 1));
+        }
+
+        long estimate(String referrer) {
+            long hash = hash(referrer);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, table.get(row * WIDTH + index(h1, h2, row)));
+            }
+            return min;
+        }
+
+        List<Map.Entry<String, Long>> top(int limit) {
+            List<Map.Entry<String, Long>> result = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < K; i++) {
+                Candidate candidate = candidates.get(i);
+                // 并发offer可能把同一来源放进两个空槽，这里去重
+                if (candidate != null && seen.add(candidate.referrer)) {
+                    result.add(new AbstractMap.SimpleImmutableEntry<>(candidate.referrer, estimate(candidate.referrer)));
+                }
+            }
+            result.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+        }
+
+        void merge(CountMinTopK other) {
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                int count = other.table.get(i);
+                if (count != 0) {
+                    table.addAndGet(i, count);
+                }
+            }
+            // 两边的候选合在一起，用合并后的估计值重新竞争
+            for (int i = 0; i < K; i++) {
+                Candidate candidate = other.candidates.get(i);
+                if (candidate != null) {
+                    offer(candidate.referrer, estimate(candidate.referrer));
+                }
+            }
+            for (int i = 0; i < K; i++) {
+                Candidate candidate = candidates.get(i);
+                if (candidate != null) {
+                    offer(candidate.referrer, estimate(candidate.referrer));
+                }
+            }
+        }
+
+        /**
+         * 候选来源快照，序列化期间候选可能被并发替换，先固定下来
+         */
+        List<byte[]> candidateNames() {
+            List<byte[]> names = new ArrayList<>();
+            for (int i = 0; i < K; i++) {
+                Candidate candidate = candidates.get(i);
+                if (candidate != null) {
+                    names.add(candidate.referrer.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return names;
+        }
+
+        static int bytes(List<byte[]> names) {
+            int size = DEPTH * WIDTH * 4 + 4;
+            for (byte[] name : names) {
+                size += 4 + name.length;
+            }
+            return size;
+        }
+
+        void writeTo(ByteBuffer buffer, List<byte[]> names) {
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                buffer.putInt(table.get(i));
+            }
+            buffer.putInt(names.size());
+            for (byte[] name : names) {
+                buffer.putInt(name.length);
+                buffer.put(name);
+            }
+        }
+
+        void readFrom(ByteBuffer buffer) {
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                table.addAndGet(i, buffer.getInt());
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                String referrer = new String(name, StandardCharsets.UTF_8);
+                offer(referrer, estimate(referrer));
+            }
+        }
+
+        private long increment(String referrer, int delta) {
+            long hash = hash(referrer);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, table.addAndGet(row * WIDTH + index(h1, h2, row), delta));
+            }
+            return min;
+        }
+
+        /**
+         * 已在候选里就刷新估计值，否则顶替估计值最小的候选
+         *
+         * 候选之间的比较不是原子的，并发下排行是近似的（这本来就是近似统计）。
+         */
+        private void offer(String referrer, long estimate) {
+            int minSlot = -1;
+            long minEstimate = Long.MAX_VALUE;
+            Candidate minCandidate = null;
+            for (int i = 0; i < K; i++) {
+                Candidate candidate = candidates.get(i);
+                if (candidate == null) {
+                    if (candidates.compareAndSet(i, null, new Candidate(referrer, estimate))) {
+                        return;
+                    }
+                    candidate = candidates.get(i);
+                }
+                if (candidate.referrer.equals(referrer)) {
+                    if (candidate.estimate < estimate) {
+                        candidates.compareAndSet(i, candidate, new Candidate(referrer, estimate));
+                    }
+                    return;
+                }
+                if (candidate.estimate < minEstimate) {
+                    minEstimate = candidate.estimate;
+                    minSlot = i;
+                    minCandidate = candidate;
+                }
+            }
+            if (minSlot >= 0 && estimate > minEstimate) {
+                candidates.compareAndSet(minSlot, minCandidate, new Candidate(referrer, estimate));
+            }
+        }
+
+        /**
+         * 两个独立哈希拼出每一行的下标（Kirsch-Mitzenmacher）
+         */
+        private static int index(int h1, int h2, int row) {
+            return ((h1 + row * h2) & Integer.MAX_VALUE) % WIDTH;
+        }
+
+        private static long hash(String referrer) {
+            return ConcurrentLongObjectMap.hash(referrer.hashCode() * 0x9E3779B97F4A7C15L);
+        }
+
+        private static final class Candidate {
+            final String referrer;
+            final long estimate;
+
+            Candidate(String referrer, long estimate) {
+                this.referrer = referrer;
+                this.estimate = estimate;
+            }
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * 内存映射的持久化URL存储
+ *
+ * 结构：
+ * 1. 追加写日志文件，按64MB分区mmap，记录不跨分区
+ * 2. 记录格式：[payload长度 int][类型 byte][id long][crc32 int][长URL UTF-8]；
+ *    带有效期的记录类型不同，payload前面多8字节过期时间戳，重启后交还给过期时间轮
+ * 3. 堆外开放寻址索引 id -> 日志偏移量（索引用0标记空槽，key是 id 翻转符号位，保留的ID和其他UrlStore一样是 Long.MIN_VALUE）
+ *
+ * 读：一次哈希探测拿到偏移，直接从映射内存（page cache）解码，不走read系统调用、不经过堆缓冲
+ * 写：单写者追加 + 更新索引
+ * 删除：追加墓碑记录，垃圾比例高了再compact
+ * 恢复：启动时顺序扫描日志，CRC校验，遇到第一条坏记录（写了一半就宕机）截断并把之后的内容全部清零，重建索引
+ * 压缩：把存活记录写到新文件，force后原子rename替换旧文件
+ */
+public class MappedUrlStore implements UrlStore {
+
+    private static final int REGION_SIZE = 64 << 20;
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+    private static final int MAX_PAYLOAD = REGION_SIZE - HEADER_SIZE;
+
+    private static final byte TYPE_END = 0;      // 文件预分配的全0区域，即日志末尾
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_PAD = 3;      // 分区尾部放不下一条记录时的填充
+    private static final byte TYPE_PUT_EXPIRING = 4;
+    private static final int EXPIRE_BYTES = 8;
+
+    private static final long RESERVED_ID = Long.MIN_VALUE;
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private final Path file;
+    private final StampedLock lock = new StampedLock();
+    private FileChannel channel;
+    private volatile MappedByteBuffer[] regions;
+    private OffHeapLongLongIndex index;
+    private long writePosition;
+    private long garbageRecords;   // 被覆盖/删除的记录数，决定是否需要compact
+    private final CRC32 crc = new CRC32();
+
+    public MappedUrlStore(Path file) {
+        this(file, 1 << 20);
+    }
+
+    /**
+     * @param file 日志文件
+     * @param expectedSize 预计URL数量，用于预分配索引
+     */
+    public MappedUrlStore(Path file, long expectedSize) {
+        this.file = file;
+        this.index = new OffHeapLongLongIndex(expectedSize);
+        this.regions = new MappedByteBuffer[0];
+        try {
+            open();
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("open url store failed: " + file, e);
+        }
+    }
+
+    @Override
+    public void put(long id, String longUrl) {
+        put(TYPE_PUT, id, longUrl.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 过期时间和映射写在同一条记录里，不会出现重启后有映射、没有有效期的情况
+     */
+    @Override
+    public void put(long id, String longUrl, long expireAtMillis) {
+        byte[] url = longUrl.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[EXPIRE_BYTES + url.length];
+        for (int i = 0; i < EXPIRE_BYTES; i++) {
+            payload[i] = (byte) (expireAtMillis >>> (56 - 8 * i));
+        }
+        System.arraycopy(url, 0, payload, EXPIRE_BYTES, url.length);
+        put(TYPE_PUT_EXPIRING, id, payload);
+    }
+
+    private void put(byte type, long id, byte[] payload) {
+        checkId(id);  // 先校验再落盘，坏ID写进日志会让之后每次恢复都失败
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("url too long: " + payload.length);
+        }
+        long stamp = lock.writeLock();
+        try {
+            long offset = append(type, id, payload);
+            if (index.get(key(id)) != OffHeapLongLongIndex.NOT_FOUND) {
+                garbageRecords++;
+            }
+            index.put(key(id), offset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String get(long id) {
+        if (id == RESERVED_ID) {
+            return null;
+        }
+        long offset;
+        // 偏移和分区数组必须来自同一版本（compact会整体替换两者）
+        MappedByteBuffer[] source;
+        long stamp = lock.tryOptimisticRead();
+        try {
+            source = regions;
+            offset = index.get(key(id));
+        } catch (RuntimeException e) {
+            source = null;
+            offset = OffHeapLongLongIndex.NOT_FOUND;  // 读到了扩容中的索引，下面持锁重读
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                source = regions;
+                offset = index.get(key(id));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return offset == OffHeapLongLongIndex.NOT_FOUND ? null : readUrl(source, offset);
+    }
+
+    @Override
+    public boolean remove(long id) {
+        if (id == RESERVED_ID) {
+            return false;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (!index.remove(key(id))) {
+                return false;
+            }
+            append(TYPE_DELETE, id, new byte[0]);
+            garbageRecords += 2;  // 原记录 + 墓碑
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return (int) index.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 按日志顺序遍历存活记录，持读锁，期间写入会等待
+     */
+    @Override
+    public void forEach(ConcurrentLongObjectMap.EntryConsumer<String> consumer) {
+        long stamp = lock.readLock();
+        try {
+            MappedByteBuffer[] source = regions;
+            scan(source, (type, id, offset) -> {
+                if (isPut(type) && index.get(key(id)) == offset) {
+                    consumer.accept(id, readUrl(source, offset));
+                }
+            });
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEachExpiring(ExpiryConsumer consumer) {
+        long stamp = lock.readLock();
+        try {
+            MappedByteBuffer[] source = regions;
+            scan(source, (type, id, offset) -> {
+                if (type == TYPE_PUT_EXPIRING && index.get(key(id)) == offset) {
+                    consumer.accept(id, readExpireAt(source, offset));
+                }
+            });
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 刷盘（mmap写入只到page cache，宕机前需要force）
+     */
+    public void flush() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * 垃圾记录占比超过阈值时压缩
+     */
+    public boolean compactIfNeeded(double garbageRatio) {
+        long stamp = lock.readLock();
+        boolean needed;
+        try {
+            long live = index.size();
+            needed = garbageRecords > 0 && garbageRecords >= (live + garbageRecords) * garbageRatio;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (needed) {
+            compact();
+        }
+        return needed;
+    }
+
+    /**
+     * 压缩：只保留存活记录
+     */
+    public void compact() {
+        long stamp = lock.writeLock();
+        try {
+            Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+            Files.deleteIfExists(compacted);
+            MappedUrlStore target = new MappedUrlStore(compacted, index.size());
+            MappedByteBuffer[] source = regions;
+            scan(source, (type, id, offset) -> {
+                if (type == TYPE_PUT && index.get(key(id)) == offset) {
+                    target.put(id, readUrl(source, offset));
+                } else if (type == TYPE_PUT_EXPIRING && index.get(key(id)) == offset) {
+                    target.put(id, readUrl(source, offset), readExpireAt(source, offset));
+                }
+            });
+            target.flush();
+            target.close();
+
+            channel.close();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            regions = new MappedByteBuffer[0];
+            index = new OffHeapLongLongIndex(index.size());
+            garbageRecords = 0;
+            open();
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("compact failed: " + file, e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 日志文件大小（字节）
+     */
+    public long logBytes() {
+        return writePosition;
+    }
+
+    @Override
+    public void close() {
+        long stamp = lock.writeLock();
+        try {
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        int count = (int) Math.max(1, (length + REGION_SIZE - 1) / REGION_SIZE);
+        for (int i = 0; i < count; i++) {
+            mapRegion(i);
+        }
+    }
+
+    /**
+     * 顺序扫描重建索引，遇到坏记录截断
+     */
+    private void recover() {
+        writePosition = scan(regions, (type, id, offset) -> {
+            if (isPut(type)) {
+                if (index.get(key(id)) != OffHeapLongLongIndex.NOT_FOUND) {
+                    garbageRecords++;
+                }
+                index.put(key(id), offset);
+            } else if (type == TYPE_DELETE) {
+                if (index.remove(key(id))) {
+                    garbageRecords++;
+                }
+                garbageRecords++;
+            }
+        });
+        // 截断点之后整个尾部清零：宕机时脏页乱序落盘，坏记录后面可能还躺着完整的旧记录，
+        // 只清一个头的话，以后新记录恰好写到它跟前，下次恢复就会把它"复活"
+        regionFor(writePosition);
+        zeroFrom(writePosition);
+    }
+
+    /**
+     * 把 position 之后映射到的内容全部清零；只写非0的位置，文件空洞不会因此被分配成实际页
+     */
+    private void zeroFrom(long position) {
+        for (int r = (int) (position / REGION_SIZE); r < regions.length; r++) {
+            MappedByteBuffer region = regions[r];
+            int p = r == position / REGION_SIZE ? (int) (position % REGION_SIZE) : 0;
+            for (; p < REGION_SIZE && (p & 7) != 0; p++) {
+                region.put(p, (byte) 0);
+            }
+            for (; p < REGION_SIZE; p += 8) {
+                if (region.getLong(p) != 0) {
+                    region.putLong(p, 0);
+                }
+            }
+        }
+    }
+
+    private static boolean isPut(byte type) {
+        return type == TYPE_PUT || type == TYPE_PUT_EXPIRING;
+    }
+
+    private static void checkId(long id) {
+        if (id == RESERVED_ID) {
+            throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+        }
+    }
+
+    /**
+     * 索引key：翻转符号位，ID 0 也能存，只有 Long.MIN_VALUE 映射到索引的空槽标记0
+     */
+    private static long key(long id) {
+        return id ^ RESERVED_ID;
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, long id, long offset);
+    }
+
+    /**
+     * 从头扫描日志
+     *
+     * @return 最后一条有效记录之后的位置
+     */
+    private long scan(MappedByteBuffer[] source, RecordVisitor visitor) {
+        CRC32 checksum = new CRC32();
+        long position = 0;
+        while (position / REGION_SIZE < source.length) {
+            MappedByteBuffer region = source[(int) (position / REGION_SIZE)];
+            int p = (int) (position % REGION_SIZE);
+            if (REGION_SIZE - p < HEADER_SIZE) {
+                position += REGION_SIZE - p;  // 分区尾部不足一个头，跳到下个分区
+                continue;
+            }
+            int length = region.getInt(p);
+            byte type = region.get(p + 4);
+            if (type == TYPE_PAD) {
+                position += REGION_SIZE - p;
+                continue;
+            }
+            if (type == TYPE_END || length < 0 || length > REGION_SIZE - p - HEADER_SIZE
+                    || (!isPut(type) && type != TYPE_DELETE)
+                    || (type == TYPE_PUT_EXPIRING && length < EXPIRE_BYTES)) {
+                break;
+            }
+            long id = region.getLong(p + 5);
+            int expected = region.getInt(p + 13);
+            checksum.reset();
+            updateChecksum(checksum, region, p + 4, 9);
+            updateChecksum(checksum, region, p + HEADER_SIZE, length);
+            if ((int) checksum.getValue() != expected) {
+                break;  // 写了一半的记录
+            }
+            visitor.visit(type, id, position);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * 追加一条记录（持写锁调用）
+     *
+     * @return 记录的起始偏移
+     */
+    private long append(byte type, long id, byte[] payload) {
+        int recordSize = HEADER_SIZE + payload.length;
+        int p = (int) (writePosition % REGION_SIZE);
+        if (REGION_SIZE - p < recordSize) {
+            // 当前分区放不下，写填充标记跳到下个分区
+            if (REGION_SIZE - p >= HEADER_SIZE) {
+                regionFor(writePosition).put(p + 4, TYPE_PAD);
+            }
+            writePosition += REGION_SIZE - p;
+            p = 0;
+        }
+        MappedByteBuffer region = regionFor(writePosition);
+
+        crc.reset();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (id >>> shift));
+        }
+        crc.update(payload);
+
+        // 先写payload和校验和，最后写长度和类型：恢复时类型为0的记录视为末尾
+        region.put(p + HEADER_SIZE, payload);
+        region.putLong(p + 5, id);
+        region.putInt(p + 13, (int) crc.getValue());
+        region.putInt(p, payload.length);
+        region.put(p + 4, type);
+
+        long offset = writePosition;
+        writePosition += recordSize;
+        return offset;
+    }
+
+    private MappedByteBuffer regionFor(long position) {
+        int regionIndex = (int) (position / REGION_SIZE);
+        while (regionIndex >= regions.length) {
+            mapRegion(regions.length);
+        }
+        return regions[regionIndex];
+    }
+
+    private void mapRegion(int regionIndex) {
+        try {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) regionIndex * REGION_SIZE, REGION_SIZE);
+            region.order(ByteOrder.BIG_ENDIAN);
+            MappedByteBuffer[] grown = Arrays.copyOf(regions, regionIndex + 1);
+            grown[regionIndex] = region;
+            regions = grown;
+        } catch (IOException e) {
+            throw new UncheckedIOException("map region failed: " + regionIndex, e);
+        }
+    }
+
+    /**
+     * 直接从映射内存解码，记录写入后不再修改，读不需要加锁
+     */
+    private static String readUrl(MappedByteBuffer[] source, long offset) {
+        MappedByteBuffer region = source[(int) (offset / REGION_SIZE)];
+        int p = (int) (offset % REGION_SIZE);
+        int length = region.getInt(p);
+        int from = p + HEADER_SIZE;
+        if (region.get(p + 4) == TYPE_PUT_EXPIRING) {
+            from += EXPIRE_BYTES;
+            length -= EXPIRE_BYTES;
+        }
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        region.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static long readExpireAt(MappedByteBuffer[] source, long offset) {
+        return source[(int) (offset / REGION_SIZE)].getLong((int) (offset % REGION_SIZE) + HEADER_SIZE);
+    }
+
+    private static void updateChecksum(CRC32 checksum, MappedByteBuffer region, int from, int length) {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+            SCRATCH.set(scratch);
+        }
+        region.get(from, scratch, 0, length);
+        checksum.update(scratch, 0, length);
+    }
+}
@@ -0,0 +1,167 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 堆外 long -> long 开放寻址索引
+ *
+ * 1. 每个槽16字节（key + value），存在DirectByteBuffer里，不占堆、不给GC添负担
+ * 2. 按页分配（每页64MB），突破单个ByteBuffer 2GB的上限，可以放下数亿条
+ * 3. 线性探测 + 反向移位删除
+ *
+ * 非线程安全，由调用方加锁；key为0表示空槽（DirectByteBuffer分配出来就是全0，不用初始化）。
+ */
+class OffHeapLongLongIndex {
+
+    static final long NOT_FOUND = -1L;
+
+    private static final int SLOT_BYTES = 16;
+    private static final int PAGE_SLOT_BITS = 22;                  // 每页 4M 个槽
+    private static final int PAGE_SLOTS = 1 << PAGE_SLOT_BITS;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private ByteBuffer[] pages;
+    private long capacity;
+    private long mask;
+    private long size;
+
+    OffHeapLongLongIndex(long expectedSize) {
+        long cap = 1024;
+        while (cap * LOAD_FACTOR < expectedSize) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    /**
+     * @return value，不存在返回 NOT_FOUND
+     */
+    long get(long key) {
+        long slot = ConcurrentLongObjectMap.hash(key) & mask;
+        for (long probes = 0; probes < capacity; probes++) {
+            long k = keyAt(slot);
+            if (k == 0) {
+                return NOT_FOUND;
+            }
+            if (k == key) {
+                return valueAt(slot);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    void put(long key, long value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key 0 is reserved");
+        }
+        long slot = ConcurrentLongObjectMap.hash(key) & mask;
+        while (true) {
+            long k = keyAt(slot);
+            if (k == key) {
+                setValue(slot, value);
+                return;
+            }
+            if (k == 0) {
+                set(slot, key, value);
+                if (++size > capacity * LOAD_FACTOR) {
+                    resize();
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    boolean remove(long key) {
+        long slot = ConcurrentLongObjectMap.hash(key) & mask;
+        while (true) {
+            long k = keyAt(slot);
+            if (k == 0) {
+                return false;
+            }
+            if (k == key) {
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * 堆外占用字节数
+     */
+    long offHeapBytes() {
+        return capacity * SLOT_BYTES;
+    }
+
+    private void shiftBack(long gap) {
+        long next = (gap + 1) & mask;
+        while (true) {
+            long k = keyAt(next);
+            if (k == 0) {
+                break;
+            }
+            long home = ConcurrentLongObjectMap.hash(k) & mask;
+            boolean movable = gap <= next ? (home <= gap || home > next) : (home <= gap && home > next);
+            if (movable) {
+                set(gap, k, valueAt(next));
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        set(gap, 0, 0);
+    }
+
+    private void resize() {
+        ByteBuffer[] oldPages = pages;
+        long oldCapacity = capacity;
+        allocate(capacity << 1);
+        size = 0;
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer page = oldPages[(int) (slot >>> PAGE_SLOT_BITS)];
+            int offset = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES;
+            long k = page.getLong(offset);
+            if (k != 0) {
+                put(k, page.getLong(offset + 8));
+            }
+        }
+    }
+
+    private void allocate(long cap) {
+        int pageCount = (int) Math.max(1, cap >>> PAGE_SLOT_BITS);
+        int slotsPerPage = (int) Math.min(cap, PAGE_SLOTS);
+        ByteBuffer[] newPages = new ByteBuffer[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            newPages[i] = ByteBuffer.allocateDirect(slotsPerPage * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        }
+        this.pages = newPages;
+        this.capacity = cap;
+        this.mask = cap - 1;
+    }
+
+    private long keyAt(long slot) {
+        return pages[(int) (slot >>> PAGE_SLOT_BITS)].getLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES);
+    }
+
+    private long valueAt(long slot) {
+        return pages[(int) (slot >>> PAGE_SLOT_BITS)].getLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES + 8);
+    }
+
+    private void setValue(long slot, long value) {
+        pages[(int) (slot >>> PAGE_SLOT_BITS)].putLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES + 8, value);
+    }
+
+    private void set(long slot, long key, long value) {
+        ByteBuffer page = pages[(int) (slot >>> PAGE_SLOT_BITS)];
+        int offset = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_BYTES;
+        page.putLong(offset, key);
+        page.putLong(offset + 8, value);
+    }
+}
@@ -0,0 +1,290 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * 号段ID分配器（美团Leaf号段模式 + 双Buffer）
+ *
+ * 问题：
+ * 进程内AtomicLong从固定值开始，两个实例会发出相同的短码。
+ *
+ * 方案：
+ * 1. 每次从存储（文件 / 数据库）预占一段ID [start, end)，多实例各占各的段，不会重复
+ * 2. 段内分配就是一次 getAndIncrement，无锁
+ * 3. 当前段用掉10%时异步加载下一段（双Buffer），切换时下一段通常已经就绪，nextId不阻塞
+ * 4. 只有异步加载还没完成就用光当前段时，才会同步等待
+ */
+public class SegmentIdAllocator implements AutoCloseable {
+
+    private static final double PRELOAD_THRESHOLD = 0.1;
+
+    private final String bizTag;
+    private final int step;
+    private final SegmentStore store;
+    private final ExecutorService loader;
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private volatile Segment current;
+    private volatile Segment next;
+
+    /**
+     * @param bizTag 业务标识，同一个存储里可以有多个业务各自分配
+     * @param store 号段存储
+     * @param step 每次预占的号段长度
+     */
+    public SegmentIdAllocator(String bizTag, SegmentStore store, int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step must be positive");
+        }
+        this.bizTag = bizTag;
+        this.step = step;
+        this.store = store;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "segment-loader-" + bizTag);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.current = loadSegment();
+    }
+
+    /**
+     * 分配下一个ID
+     */
+    public long nextId() {
+        while (true) {
+            Segment segment = current;
+            long id = segment.cursor.getAndIncrement();
+            if (id < segment.end) {
+                if (id == segment.preloadAt) {
+                    preloadNext();
+                }
+                return id;
+            }
+            switchSegment(segment);
+        }
+    }
+
+    /**
+     * 批量导入用：直接从存储预占一段连续ID，不经过当前号段
+     *
+     * @return 起始ID，本次占到 [返回值, 返回值 + count)
+     */
+    public long allocateBlock(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        long max = store.reserve(bizTag, count);
+        return max - count + 1;
+    }
+
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * 异步加载下一段（同一时间只有一个加载任务）
+     */
+    private void preloadNext() {
+        if (next == null && loading.compareAndSet(false, true)) {
+            loader.execute(() -> {
+                try {
+                    next = loadSegment();
+                } catch (RuntimeException e) {
+                    // 加载失败不影响当前段，切换时会同步重试
+                    System.err.println("预加载号段失败: " + e.getMessage());
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+    }
+
+    private synchronized void switchSegment(Segment exhausted) {
+        if (current != exhausted) {
+            return;  // 其他线程已经切换过
+        }
+        Segment ready = next;
+        if (ready == null) {
+            // 预加载没赶上，只能同步加载
+            ready = loadSegment();
+        }
+        next = null;
+        current = ready;
+    }
+
+    private Segment loadSegment() {
+        long max = store.reserve(bizTag, step);
+        return new Segment(max - step + 1, max + 1);
+    }
+
+    /**
+     * 一个号段 [start, end)
+     */
+    private static final class Segment {
+        private final long end;
+        private final long preloadAt;
+        private final AtomicLong cursor;
+
+        Segment(long start, long end) {
+            this.end = end;
+            this.preloadAt = start + (long) ((end - start) * PRELOAD_THRESHOLD);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 号段存储 - 可插拔
+     */
+    public interface SegmentStore {
+        /**
+         * 把bizTag的已分配上限原子地增加step
+         *
+         * @return 增加后的上限，本次预占的号段为 (返回值 - step, 返回值]
+         */
+        long reserve(String bizTag, int step);
+    }
+
+    /**
+     * 内存存储 - 单机/测试用
+     */
+    public static class InMemorySegmentStore implements SegmentStore {
+        private final AtomicLong maxId;
+
+        public InMemorySegmentStore(long initialMaxId) {
+            this.maxId = new AtomicLong(initialMaxId);
+        }
+
+        @Override
+        public long reserve(String bizTag, int step) {
+            return maxId.addAndGet(step);
+        }
+    }
+
+    /**
+     * 文件存储 - 本机多进程共享，用文件锁互斥
+     *
+     * 文件锁是进程级的，同一JVM内多个实例指向同一文件时再用按路径的内存锁串行化。
+     * 文件内容是Properties：bizTag=已分配上限
+     */
+    public static class FileSegmentStore implements SegmentStore {
+        private static final Map<Path, Object> PATH_LOCKS = new ConcurrentHashMap<>();
+
+        private final Path file;
+        private final long initialMaxId;
+        private final Object pathLock;
+
+        public FileSegmentStore(Path file, long initialMaxId) {
+            this.file = file.toAbsolutePath().normalize();
+            this.initialMaxId = initialMaxId;
+            this.pathLock = PATH_LOCKS.computeIfAbsent(this.file, k -> new Object());
+        }
+
+        @Override
+        public long reserve(String bizTag, int step) {
+            synchronized (pathLock) {
+                try (FileChannel channel = FileChannel.open(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    try {
+                        return reserve(channel, bizTag, step);
+                    } finally {
+                        lock.release();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("reserve segment failed: " + bizTag, e);
+                }
+            }
+        }
+
+        private long reserve(FileChannel channel, String bizTag, int step) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // 读完整个文件
+            }
+            Properties properties = new Properties();
+            properties.load(new StringReader(new String(buffer.array(), StandardCharsets.UTF_8)));
+
+            long max = Long.parseLong(properties.getProperty(bizTag, String.valueOf(initialMaxId))) + step;
+            properties.setProperty(bizTag, String.valueOf(max));
+
+            StringWriter writer = new StringWriter();
+            properties.store(writer, null);
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(writer.toString().getBytes(StandardCharsets.UTF_8)), 0);
+            channel.force(true);  // 落盘后才能把号段发出去，否则宕机重启会重复
+            return max;
+        }
+    }
+
+    /**
+     * 数据库存储
+     *
+     * CREATE TABLE id_segment (
+     *     biz_tag VARCHAR(64) PRIMARY KEY,
+     *     max_id  BIGINT NOT NULL
+     * );
+     */
+    public static class JdbcSegmentStore implements SegmentStore {
+        private static final String UPDATE_SQL = "UPDATE id_segment SET max_id = max_id + ? WHERE biz_tag = ?";
+        private static final String SELECT_SQL = "SELECT max_id FROM id_segment WHERE biz_tag = ?";
+
+        private final DataSource dataSource;
+
+        public JdbcSegmentStore(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public long reserve(String bizTag, int step) {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    // UPDATE 持有行锁，同一事务里再 SELECT 读到的就是本次占到的上限
+                    try (PreparedStatement update = connection.prepareStatement(UPDATE_SQL)) {
+                        update.setInt(1, step);
+                        update.setString(2, bizTag);
+                        if (update.executeUpdate() != 1) {
+                            throw new IllegalStateException("biz_tag not found: " + bizTag);
+                        }
+                    }
+                    long max;
+                    try (PreparedStatement select = connection.prepareStatement(SELECT_SQL)) {
+                        select.setString(1, bizTag);
+                        try (ResultSet rs = select.executeQuery()) {
+                            rs.next();
+                            max = rs.getLong(1);
+                        }
+                    }
+                    connection.commit();
+                    return max;
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("reserve segment failed: " + bizTag, e);
+            }
+        }
+    }
+}
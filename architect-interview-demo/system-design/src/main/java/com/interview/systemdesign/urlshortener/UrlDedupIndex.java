@@ -0,0 +1,362 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * 长URL去重索引：长URL -> ID
+ *
+ * 问题：
+ * Map&lt;String, Long&gt; 以完整长URL为key，长URL在堆上再存一份，外加Node和Long对象。
+ *
+ * 方案：
+ * 1. key只存长URL的128位哈希（MurmurHash3 x64_128，两个long），和ID一起放在一个long[]里，每条24字节
+ * 2. 哈希命中后回UrlStore取原文做精确比较，哈希碰撞也不会把两个URL映射到同一个短码
+ * 3. 真碰撞（128位相同但URL不同）放进溢出Map，概率可以忽略
+ * 4. 分段 + StampedLock乐观读，和 ConcurrentLongObjectMap 同样的结构
+ *
+ * 索引条目指向的ID已从存储中删除（过期回收）时视为不存在，下次插入直接复用该槽位。
+ * 索引只在堆上，构造时遍历一遍存储重建，持久化存储（MappedUrlStore）重启后去重照样生效；
+ * 重建时跳过带有效期的ID，临时链接重启后也不会被永久的 shorten 复用。
+ */
+public class UrlDedupIndex {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long SEED = 0x9747b28cL;
+    private static final ThreadLocal<long[]> HASH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final UrlStore store;
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final Map<String, Long> overflow = new ConcurrentHashMap<>();
+
+    public UrlDedupIndex(UrlStore store) {
+        this(store, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public UrlDedupIndex(UrlStore store, int concurrency) {
+        this(store, concurrency, id -> false);
+    }
+
+    /**
+     * @param excluded 重建时要跳过的ID（带有效期的链接不参与去重）
+     */
+    public UrlDedupIndex(UrlStore store, int concurrency, LongPredicate excluded) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        this.store = store;
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+        long[] hash = new long[2];
+        store.forEach((id, longUrl) -> {
+            if (excluded.test(id)) {
+                return;
+            }
+            murmur3(longUrl, hash);
+            segmentFor(hash[0]).load(hash[0], hash[1], longUrl, id);
+        });
+    }
+
+    /**
+     * @return 已有的ID，不存在返回-1
+     */
+    public long find(String longUrl) {
+        long[] hash = HASH.get();
+        murmur3(longUrl, hash);
+        return find(longUrl, hash[0], hash[1]);
+    }
+
+    /**
+     * 已存在返回原ID；否则分配新ID、写入存储，再登记到索引
+     *
+     * 同一长URL并发调用只会分配一次。
+     */
+    public long findOrInsert(String longUrl, LongSupplier idAllocator) {
+        long[] hash = HASH.get();
+        murmur3(longUrl, hash);
+        long h1 = hash[0];
+        long h2 = hash[1];
+        long existing = find(longUrl, h1, h2);
+        return existing >= 0 ? existing : insert(longUrl, h1, h2, idAllocator);
+    }
+
+    /**
+     * 哈希已经算好时的查找（批量导入先并行算哈希）
+     */
+    long find(String longUrl, long h1, long h2) {
+        long id = segmentFor(h1).find(h1, h2);
+        if (id == EMPTY) {
+            return -1;
+        }
+        if (longUrl.equals(store.get(id))) {
+            return id;
+        }
+        Long collided = overflow.get(longUrl);
+        return collided == null ? -1 : collided;
+    }
+
+    /**
+     * 哈希已经算好时的插入，已存在（包括并发插入）时返回原ID，不调用idAllocator
+     */
+    long insert(String longUrl, long h1, long h2, LongSupplier idAllocator) {
+        return segmentFor(h1).insert(h1, h2, longUrl, idAllocator);
+    }
+
+    public int size() {
+        int size = overflow.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 溢出表大小（128位哈希真碰撞的条数）
+     */
+    int overflowSize() {
+        return overflow.size();
+    }
+
+    private Segment segmentFor(long h1) {
+        return segments[(int) (h1 >>> 48) & segmentMask];
+    }
+
+    /**
+     * 一张表：每个槽3个long [h1, h2, id]，整体替换，乐观读不会看到不一致的容量
+     */
+    private static final class Table {
+        final long[] slots;
+        final int mask;
+
+        Table(int capacity) {
+            this.slots = new long[capacity * 3];
+            this.mask = capacity - 1;
+            for (int i = 2; i < slots.length; i += 3) {
+                slots[i] = EMPTY;
+            }
+        }
+    }
+
+    private final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+
+        long find(long h1, long h2) {
+            long stamp = lock.tryOptimisticRead();
+            long id = probe(table, h1, h2);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    id = probe(table, h1, h2);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return id;
+        }
+
+        long insert(long h1, long h2, String longUrl, LongSupplier idAllocator) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = (int) h2 & t.mask;
+                while (true) {
+                    int base = slot * 3;
+                    long id = t.slots[base + 2];
+                    if (id == EMPTY) {
+                        long newId = assign(longUrl, idAllocator);
+                        t.slots[base] = h1;
+                        t.slots[base + 1] = h2;
+                        t.slots[base + 2] = newId;
+                        if (++size > ((t.mask + 1) >>> 2) * 3) {
+                            resize(t);
+                        }
+                        return newId;
+                    }
+                    if (t.slots[base] == h1 && t.slots[base + 1] == h2) {
+                        String stored = store.get(id);
+                        if (longUrl.equals(stored)) {
+                            return id;  // 并发插入，别的线程先到
+                        }
+                        if (stored == null) {
+                            // 原ID已被回收，复用槽位
+                            long newId = assign(longUrl, idAllocator);
+                            t.slots[base + 2] = newId;
+                            return newId;
+                        }
+                        // 128位哈希真碰撞
+                        return overflow.computeIfAbsent(longUrl, url -> assign(url, idAllocator));
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * 重建时登记存储里已有的映射，不分配ID、不写存储；同一URL有多个ID时保留先遇到的
+         */
+        void load(long h1, long h2, String longUrl, long id) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = (int) h2 & t.mask;
+                while (true) {
+                    int base = slot * 3;
+                    long existing = t.slots[base + 2];
+                    if (existing == EMPTY) {
+                        t.slots[base] = h1;
+                        t.slots[base + 1] = h2;
+                        t.slots[base + 2] = id;
+                        if (++size > ((t.mask + 1) >>> 2) * 3) {
+                            resize(t);
+                        }
+                        return;
+                    }
+                    if (t.slots[base] == h1 && t.slots[base + 1] == h2) {
+                        if (!longUrl.equals(store.get(existing))) {
+                            overflow.putIfAbsent(longUrl, id);  // 128位哈希真碰撞
+                        }
+                        return;
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private long assign(String longUrl, LongSupplier idAllocator) {
+            long id = idAllocator.getAsLong();
+            store.put(id, longUrl);  // 先写存储再登记索引，查到ID就一定能取到原文
+            return id;
+        }
+
+        /**
+         * 乐观读时表可能正在被修改，最多探测一整圈
+         */
+        private long probe(Table t, long h1, long h2) {
+            int slot = (int) h2 & t.mask;
+            for (int probes = 0; probes <= t.mask; probes++) {
+                int base = slot * 3;
+                long id = t.slots[base + 2];
+                if (id == EMPTY) {
+                    return EMPTY;
+                }
+                if (t.slots[base] == h1 && t.slots[base + 1] == h2) {
+                    return id;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+            return EMPTY;
+        }
+
+        private void resize(Table old) {
+            Table t = new Table((old.mask + 1) << 1);
+            for (int i = 0; i < old.slots.length; i += 3) {
+                if (old.slots[i + 2] != EMPTY) {
+                    int slot = (int) old.slots[i + 1] & t.mask;
+                    while (t.slots[slot * 3 + 2] != EMPTY) {
+                        slot = (slot + 1) & t.mask;
+                    }
+                    System.arraycopy(old.slots, i, t.slots, slot * 3, 3);
+                }
+            }
+            table = t;
+        }
+    }
+
+    /**
+     * MurmurHash3 x64_128，直接按char读（每个char当2字节小端），不用先转成byte[]
+     *
+     * @param out 输出 [h1, h2]
+     */
+    static void murmur3(CharSequence s, long[] out) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int length = s.length();
+        long h1 = SEED;
+        long h2 = SEED;
+
+        int blocks = length >>> 3;  // 每块8个char = 16字节
+        for (int i = 0; i < blocks; i++) {
+            int p = i << 3;
+            long k1 = s.charAt(p) | (long) s.charAt(p + 1) << 16
+                    | (long) s.charAt(p + 2) << 32 | (long) s.charAt(p + 3) << 48;
+            long k2 = s.charAt(p + 4) | (long) s.charAt(p + 5) << 16
+                    | (long) s.charAt(p + 6) << 32 | (long) s.charAt(p + 7) << 48;
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks << 3;
+        for (int i = length - 1; i >= tail; i--) {
+            int shift = ((i - tail) & 3) << 4;
+            if (i - tail >= 4) {
+                k2 |= (long) s.charAt(i) << shift;
+            } else {
+                k1 |= (long) s.charAt(i) << shift;
+            }
+        }
+        if (k2 != 0) {
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if (k1 != 0) {
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        long byteLength = (long) length << 1;
+        h1 ^= byteLength;
+        h2 ^= byteLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = ConcurrentLongObjectMap.hash(h1);
+        h2 = ConcurrentLongObjectMap.hash(h2);
+        h1 += h2;
+        h2 += h1;
+        out[0] = h1;
+        out[1] = h2;
+    }
+}
@@ -0,0 +1,137 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 长URL去重索引基准：UrlDedupIndex vs ConcurrentHashMap&lt;String, Long&gt; / HashMap&lt;String, Long&gt;
+ *
+ * 1. 内存：在长URL原文已由存储持有的前提下，只统计索引本身多占的堆
+ *    （Map方案下存储换成mmap时，长URL原文也要算在Map头上，单独打印）
+ * 2. 吞吐：用内容相同但实例不同的字符串查询（String不缓存hash），模拟真实请求
+ *
+ * 运行：java UrlIndexBenchmark [urls] [lookups]
+ * 建议 -Xmx2g，结果只反映相对量级
+ */
+public class UrlIndexBenchmark {
+
+    public static void main(String[] args) {
+        int urls = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+
+        String[] originals = new String[urls];
+        long textBytes = 0;
+        for (int i = 0; i < urls; i++) {
+            originals[i] = randomUrl(i);
+            textBytes += 24 + 16 + originals[i].length();  // String + byte[]头 + Latin1内容
+        }
+        String[] queries = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            queries[i] = new StringBuilder(originals[ThreadLocalRandom.current().nextInt(urls)]).toString();
+        }
+
+        // 存储放在基线里：三种方案都要靠它做 ID -> 长URL
+        UrlStore store = new UrlStore.HeapUrlStore();
+        for (int i = 0; i < urls; i++) {
+            store.put(i + 1, originals[i]);
+        }
+        System.out.printf("urls=%d, lookups=%d, 长URL原文约 %.1f MB%n", urls, lookups, textBytes / 1048576.0);
+
+        long hashMapOps = benchmarkMap("HashMap<String, Long>", new HashMap<>(), originals, queries);
+        long concurrentMapOps = benchmarkMap("ConcurrentHashMap<String, Long>", new ConcurrentHashMap<>(),
+            originals, queries);
+        long indexOps = benchmarkIndex(store, originals, queries);
+        System.out.printf("存储换成MappedUrlStore后，Map方案还要额外在堆上保留长URL原文 %.1f MB，UrlDedupIndex不需要%n",
+            textBytes / 1048576.0);
+
+        System.out.println();
+        System.out.printf("%-34s %,12d ops/s%n", "HashMap.get", hashMapOps);
+        System.out.printf("%-34s %,12d ops/s%n", "ConcurrentHashMap.get", concurrentMapOps);
+        System.out.printf("%-34s %,12d ops/s%n", "UrlDedupIndex.find(含原文校验)", indexOps);
+    }
+
+    /**
+     * 每种方案在单独的方法里建、测、丢，量下一种时上一种已经可以回收
+     */
+    private static long benchmarkMap(String name, Map<String, Long> map, String[] originals, String[] queries) {
+        long base = usedHeap();
+        for (int i = 0; i < originals.length; i++) {
+            map.put(originals[i], (long) i + 1);
+        }
+        report(name, usedHeap() - base, originals.length);
+        return measure(queries, q -> map.get(q) != null);
+    }
+
+    private static long benchmarkIndex(UrlStore store, String[] originals, String[] queries) {
+        long base = usedHeap();
+        UrlDedupIndex index = new UrlDedupIndex(store);
+        long[] next = {1};
+        for (String url : originals) {
+            index.findOrInsert(url, () -> next[0]++);
+        }
+        report("UrlDedupIndex", usedHeap() - base, originals.length);
+        System.out.printf("%-34s 条目=%d, 128位碰撞=%d%n", "", index.size(), index.overflowSize());
+        return measure(queries, q -> index.find(q) >= 0);
+    }
+
+    private interface Lookup {
+        boolean test(String url);
+    }
+
+    /**
+     * 预热一轮，再计时一轮
+     */
+    private static long measure(String[] queries, Lookup lookup) {
+        int hits = 0;
+        for (String q : queries) {
+            hits += lookup.test(q) ? 1 : 0;
+        }
+        long start = System.nanoTime();
+        for (String q : queries) {
+            hits += lookup.test(q) ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (hits != queries.length * 2) {
+            throw new IllegalStateException("lookup missed: " + (queries.length * 2 - hits));
+        }
+        return queries.length * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    private static void report(String name, long bytes, int urls) {
+        System.out.printf("%-34s 额外堆 %8.1f MB, 每条 %5.1f 字节%n", name, bytes / 1048576.0, (double) bytes / urls);
+    }
+
+    /**
+     * 反复GC直到已用堆不再下降
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    private static String randomUrl(int i) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder sb = new StringBuilder("https://www.example.com/");
+        int segments = 2 + random.nextInt(4);
+        for (int s = 0; s < segments; s++) {
+            sb.append(Long.toString(random.nextLong() >>> 20, 36)).append('/');
+        }
+        return sb.append("item?id=").append(i).append("&utm_source=share").toString();
+    }
+}
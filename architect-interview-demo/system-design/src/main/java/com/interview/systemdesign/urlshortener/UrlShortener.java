@@ -1,8 +1,18 @@
 package com.interview.systemdesign.urlshortener;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 短URL服务设计
@@ -20,7 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * 解决方案：
  * 1. 自增ID + Base62编码
  * 2. Hash算法（可能冲突）
- * 3. 预生成号段
+ * 3. 预生成号段（SegmentIdAllocator）
  */
 public class UrlShortener {
     
@@ -29,65 +39,266 @@ public class UrlShortener {
      * 
      * 优点：简单、无冲突、短
      * 缺点：可预测
+     * 
+     * 存储优化（线程安全）：
+     * 1. 短码不存储 —— decode(shortCode) 就能还原出ID
+     * 2. ID -> 长URL 交给UrlStore：默认堆内long主键Map（不装箱），大数据量用MappedUrlStore放到mmap日志里
+     * 3. 长URL去重用UrlDedupIndex：只存128位哈希 + ID，长URL不在堆上再存一份
+     * 4. 域名前缀不随每条记录存储，返回时再拼
+     * 5. 编码写进线程复用的char[]，不用StringBuilder + reverse
+     * 
+     * 带有效期的短链：
+     * 过期时间记在ExpiryWheel的粗粒度桶里，expand先查桶判断过期，过期直接返回null不查存储；
+     * 到期的桶整桶回收（reclaimExpired）。带有效期的链接不参与去重，避免让永久链接跟着过期。
+     * 过期时间随映射一起写进存储，启动时先从存储恢复时间轮，再重建去重索引（跳过带有效期的ID）。
+     * 
+     * 号段分配器和存储归本实例所有，close() 时一起关闭（号段预加载线程、mmap文件）。
      */
-    public static class Base62UrlShortener {
+    public static class Base62UrlShortener implements AutoCloseable {
         private static final String BASE62 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
         private static final int BASE = 62;
+        private static final String DOMAIN = "http://short.url/";
+        private static final int MAX_CODE_LENGTH = 11;  // 62^11 > 2^63
+        private static final byte[] DECODE_TABLE = new byte[128];
+        private static final int PARALLEL_THRESHOLD = 4096;
+        private static final ThreadLocal<char[]> BUFFER =
+            ThreadLocal.withInitial(() -> {
+                char[] buffer = new char[DOMAIN.length() + MAX_CODE_LENGTH];
+                DOMAIN.getChars(0, DOMAIN.length(), buffer, 0);
+                return buffer;
+            });
         
-        private final AtomicLong idGenerator = new AtomicLong(10000000);  // 从1000万开始
-        private final Map<String, String> shortToLong = new HashMap<>();
-        private final Map<String, String> longToShort = new HashMap<>();
+        static {
+            Arrays.fill(DECODE_TABLE, (byte) -1);
+            for (int i = 0; i < BASE; i++) {
+                DECODE_TABLE[BASE62.charAt(i)] = (byte) i;
+            }
+        }
+        
+        private final SegmentIdAllocator idGenerator;
+        private final UrlStore store;
+        private final UrlDedupIndex longToId;
+        private final ExpiryWheel expiry;
+        
+        public Base62UrlShortener() {
+            // 单机默认：内存号段，从1000万开始
+            this(new SegmentIdAllocator("url", new SegmentIdAllocator.InMemorySegmentStore(10000000), 1000));
+        }
+        
+        /**
+         * 多实例部署时传入共享存储（文件/数据库）的号段分配器，各实例占用不同号段，短码不会重复
+         */
+        public Base62UrlShortener(SegmentIdAllocator idGenerator) {
+            this(idGenerator, new UrlStore.HeapUrlStore());
+        }
+        
+        /**
+         * @param store ID -> 长URL 存储，持久化时传入MappedUrlStore
+         */
+        public Base62UrlShortener(SegmentIdAllocator idGenerator, UrlStore store) {
+            this(idGenerator, store, new ExpiryWheel(ExpiryWheel.HOUR));
+        }
+        
+        /**
+         * @param expiry 过期时间轮，桶宽决定过期生效的精度
+         */
+        public Base62UrlShortener(SegmentIdAllocator idGenerator, UrlStore store, ExpiryWheel expiry) {
+            this.idGenerator = idGenerator;
+            this.store = store;
+            this.expiry = expiry;
+            store.forEachExpiring(expiry::schedule);
+            this.longToId = new UrlDedupIndex(store, Runtime.getRuntime().availableProcessors() * 4,
+                expiry::isScheduled);
+        }
         
         /**
          * 长URL转短URL
          */
         public String shorten(String longUrl) {
-            // 检查是否已存在
-            if (longToShort.containsKey(longUrl)) {
-                return longToShort.get(longUrl);
-            }
-            
-            // 生成短码
-            long id = idGenerator.incrementAndGet();
-            String shortCode = encode(id);
-            String shortUrl = "http://short.url/" + shortCode;
+            // 已存在直接复用；不存在时分配ID并写入存储，同一URL并发只分配一次
+            long id = longToId.findOrInsert(longUrl, idGenerator::nextId);
+            return toShortUrl(id);
+        }
+        
+        /**
+         * 生成带有效期的短URL，每次都分配新ID
+         * 
+         * @param expireAtMillis 过期时间戳，实际按桶宽向上取整生效
+         */
+        public String shorten(String longUrl, long expireAtMillis) {
+            long id = idGenerator.nextId();
+            // 先登记过期再写存储，链接一旦可见就带着有效期
+            expiry.schedule(id, expireAtMillis);
+            store.put(id, longUrl, expireAtMillis);
+            return toShortUrl(id);
+        }
+        
+        /**
+         * 批量生成短URL（导入任务用）
+         * 
+         * 1. 并行算哈希、查已有ID
+         * 2. 按未命中的条数一次性预占一段连续ID，不逐个走号段
+         * 3. 单遍顺序插入索引和存储（批内重复的URL第二次会命中第一次插入的结果）
+         * 4. 并行编码
+         * 
+         * @return 与入参顺序一致的短URL
+         */
+        public List<String> shortenAll(List<String> longUrls) {
+            int n = longUrls.size();
+            String[] urls = longUrls.toArray(new String[0]);
+            long[] hashes = new long[n * 2];
+            long[] ids = new long[n];
+            forEach(n, i -> {
+                long[] hash = new long[2];
+                UrlDedupIndex.murmur3(urls[i], hash);
+                hashes[i * 2] = hash[0];
+                hashes[i * 2 + 1] = hash[1];
+                ids[i] = longToId.find(urls[i], hash[0], hash[1]);
+            });
             
-            // 存储映射
-            shortToLong.put(shortCode, longUrl);
-            longToShort.put(longUrl, shortUrl);
+            int misses = 0;
+            for (long id : ids) {
+                if (id < 0) {
+                    misses++;
+                }
+            }
+            if (misses > 0) {
+                long[] next = {idGenerator.allocateBlock(misses)};
+                for (int i = 0; i < n; i++) {
+                    if (ids[i] < 0) {
+                        ids[i] = longToId.insert(urls[i], hashes[i * 2], hashes[i * 2 + 1], () -> next[0]++);
+                    }
+                }
+            }
             
-            return shortUrl;
+            String[] shortUrls = new String[n];
+            forEach(n, i -> shortUrls[i] = toShortUrl(ids[i]));
+            return Arrays.asList(shortUrls);
+        }
+        
+        /**
+         * 批量按ID还原，不存在的位置为null
+         */
+        public String[] expandAll(long[] ids) {
+            String[] longUrls = new String[ids.length];
+            forEach(ids.length, i -> longUrls[i] = ids[i] < 0 ? null : expand(ids[i]));
+            return longUrls;
+        }
+        
+        /**
+         * 小批量直接顺序执行，大批量拆到ForkJoin公共池
+         */
+        private static void forEach(int n, IntConsumer action) {
+            if (n < PARALLEL_THRESHOLD) {
+                for (int i = 0; i < n; i++) {
+                    action.accept(i);
+                }
+            } else {
+                IntStream.range(0, n).parallel().forEach(action);
+            }
         }
         
         /**
          * 短URL还原
          */
         public String expand(String shortCode) {
-            return shortToLong.get(shortCode);
+            long id = decode(shortCode);
+            return id < 0 ? null : expand(id);
+        }
+        
+        /**
+         * 按ID还原，调用方已经解码过短码时用
+         */
+        String expand(long id) {
+            return isExpired(id) ? null : store.get(id);
+        }
+        
+        /**
+         * 停止号段预加载线程并关闭存储
+         */
+        @Override
+        public void close() {
+            idGenerator.close();
+            store.close();
+        }
+        
+        boolean isExpired(long id) {
+            return expiry.isExpired(id, System.currentTimeMillis());
+        }
+        
+        /**
+         * 回收所有到期桶里的链接
+         * 
+         * @param listener 每个被回收的ID回调一次（清理缓存、统计）
+         * @return 回收数量
+         */
+        public int reclaimExpired(LongConsumer listener) {
+            return expiry.reclaim(System.currentTimeMillis(), id -> {
+                store.remove(id);
+                listener.accept(id);
+            });
+        }
+        
+        /**
+         * ID -> 完整短URL，前缀和短码一起写进线程复用的缓冲区
+         */
+        static String toShortUrl(long id) {
+            char[] buffer = BUFFER.get();
+            int length = encodedLength(id);
+            writeCode(id, buffer, DOMAIN.length(), length);
+            return new String(buffer, 0, DOMAIN.length() + length);
         }
         
         /**
          * Base62编码
          */
-        private String encode(long num) {
-            StringBuilder sb = new StringBuilder();
-            while (num > 0) {
-                sb.append(BASE62.charAt((int) (num % BASE)));
-                num /= BASE;
-            }
-            return sb.reverse().toString();
+        static String encode(long num) {
+            char[] buffer = BUFFER.get();
+            int length = encodedLength(num);
+            writeCode(num, buffer, DOMAIN.length(), length);
+            return new String(buffer, DOMAIN.length(), length);
         }
         
         /**
-         * Base62解码
+         * Base62解码，非法短码返回-1
          */
-        private long decode(String str) {
+        static long decode(String str) {
+            if (str == null || str.isEmpty() || str.length() > MAX_CODE_LENGTH) {
+                return -1;
+            }
             long num = 0;
-            for (char c : str.toCharArray()) {
-                num = num * BASE + BASE62.indexOf(c);
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                int digit = c < 128 ? DECODE_TABLE[c] : -1;
+                if (digit < 0) {
+                    return -1;
+                }
+                if (num > (Long.MAX_VALUE - digit) / BASE) {
+                    return -1;  // 溢出（乘完再看符号位不可靠，11位码能绕回正数）
+                }
+                num = num * BASE + digit;
             }
             return num;
         }
+        
+        /**
+         * 从后往前写，省掉reverse
+         */
+        private static void writeCode(long num, char[] buffer, int offset, int length) {
+            for (int i = offset + length - 1; i >= offset; i--) {
+                buffer[i] = BASE62.charAt((int) (num % BASE));
+                num /= BASE;
+            }
+        }
+        
+        private static int encodedLength(long num) {
+            int length = 1;
+            while (num >= BASE) {
+                num /= BASE;
+                length++;
+            }
+            return length;
+        }
     }
     
     /**
@@ -97,6 +308,7 @@ public class UrlShortener {
      * 缺点：可能冲突、较长
      */
     public static class HashUrlShortener {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
         private final Map<String, String> shortToLong = new HashMap<>();
         
         /**
@@ -109,11 +321,11 @@ public class UrlShortener {
             // 2. 取前6位作为短码
             String shortCode = hash.substring(0, 6);
             
-            // 3. 冲突检测
-            while (shortToLong.containsKey(shortCode)) {
-                // 冲突处理：加盐重新hash
-                longUrl = longUrl + System.currentTimeMillis();
-                hash = md5(longUrl);
+            // 3. 冲突检测（同一URL重复提交直接复用）
+            int salt = 0;
+            while (shortToLong.containsKey(shortCode) && !shortToLong.get(shortCode).equals(longUrl)) {
+                // 冲突处理：加盐重新hash，存的仍是原始URL
+                hash = md5(longUrl + "#" + (++salt));
                 shortCode = hash.substring(0, 6);
             }
             
@@ -122,36 +334,70 @@ public class UrlShortener {
         }
         
         /**
-         * MD5 hash（简化版）
+         * MD5 hash，32位十六进制
          */
         private String md5(String str) {
-            // 实际应该使用MessageDigest
-            return Integer.toHexString(str.hashCode());
+            try {
+                byte[] digest = MessageDigest.getInstance("MD5").digest(str.getBytes(StandardCharsets.UTF_8));
+                char[] hex = new char[digest.length * 2];
+                for (int i = 0; i < digest.length; i++) {
+                    hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                    hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+                }
+                return new String(hex);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 not available", e);  // JDK必须提供MD5
+            }
         }
     }
     
     /**
      * 完整实现 - 包含统计
+     * 
+     * 跳转是读多写少的热路径：
+     * 1. 热点短码先查前置缓存（HotLinkCache），命中就不碰存储
+     * 2. 访问次数写进线程本地的累加器（VisitAccumulator），不去改共享的 UrlStats
+     * 3. 后台单线程定期把累加结果批量合并到统计，UrlStats 只有这一个写者
+     * 4. 带访客/来源的跳转额外写入LinkAnalytics（独立访客、访问间隔分位数、热门来源），每个链接内存固定
+     * 
+     * 统计因此是最终一致的，最多落后一个刷新周期；需要立即可见时调用 flushVisits()。
      */
-    public static class AdvancedUrlShortener {
-        private final Base62UrlShortener shortener = new Base62UrlShortener();
-        private final Map<String, UrlStats> stats = new HashMap<>();
+    public static class AdvancedUrlShortener implements AutoCloseable {
+        private final Base62UrlShortener shortener;
+        private final ConcurrentLongObjectMap<UrlStats> stats = new ConcurrentLongObjectMap<>();
+        private final HotLinkCache hotLinks;
+        private final VisitAccumulator visits = new VisitAccumulator();
+        private final LinkAnalytics analytics = new LinkAnalytics();
+        private final ScheduledExecutorService flusher;
         
         static class UrlStats {
             private final String longUrl;
-            private long visitCount;
-            private long createTime;
-            private long lastVisitTime;
+            private final long createTime;
+            // 只有刷新线程写，读方直接读volatile
+            private volatile long visitCount;
+            private volatile long lastVisitTime;
             
             public UrlStats(String longUrl) {
                 this.longUrl = longUrl;
-                this.visitCount = 0;
                 this.createTime = System.currentTimeMillis();
             }
             
-            public void visit() {
-                visitCount++;
-                lastVisitTime = System.currentTimeMillis();
+            /**
+             * 合并一批访问（单写者调用）
+             */
+            void applyVisits(long count, long visitTime) {
+                visitCount = visitCount + count;
+                if (visitTime > lastVisitTime) {
+                    lastVisitTime = visitTime;
+                }
+            }
+            
+            public long getVisitCount() {
+                return visitCount;
+            }
+            
+            public long getLastVisitTime() {
+                return lastVisitTime;
             }
             
             @Override
@@ -165,23 +411,119 @@ public class UrlShortener {
             }
         }
         
+        public AdvancedUrlShortener() {
+            this(new Base62UrlShortener(), 4096, 1000);
+        }
+        
+        /**
+         * @param hotLinkSlots 前置缓存槽位数
+         * @param flushIntervalMillis 访问计数合并周期
+         */
+        public AdvancedUrlShortener(Base62UrlShortener shortener, int hotLinkSlots, long flushIntervalMillis) {
+            this.shortener = shortener;
+            this.hotLinks = new HotLinkCache(hotLinkSlots);
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "visit-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushVisits, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+            flusher.scheduleWithFixedDelay(this::reclaimExpired, 1, 1, TimeUnit.MINUTES);
+        }
+        
         /**
          * 创建短URL
          */
         public String createShortUrl(String longUrl) {
             String shortUrl = shortener.shorten(longUrl);
-            String shortCode = shortUrl.substring(shortUrl.lastIndexOf('/') + 1);
-            stats.put(shortCode, new UrlStats(longUrl));
+            long id = Base62UrlShortener.decode(shortUrl.substring(shortUrl.lastIndexOf('/') + 1));
+            // 同一长URL重复创建时保留已有统计
+            stats.putIfAbsent(id, new UrlStats(longUrl));
             return shortUrl;
         }
         
+        /**
+         * 创建带有效期的短URL
+         */
+        public String createShortUrl(String longUrl, long expireAtMillis) {
+            String shortUrl = shortener.shorten(longUrl, expireAtMillis);
+            long id = Base62UrlShortener.decode(shortUrl.substring(shortUrl.lastIndexOf('/') + 1));
+            stats.put(id, new UrlStats(longUrl));
+            return shortUrl;
+        }
+        
+        /**
+         * 回收已过期的链接，连同缓存、统计一起清掉
+         * 
+         * @return 回收数量
+         */
+        public int reclaimExpired() {
+            return shortener.reclaimExpired(id -> {
+                hotLinks.invalidate(id);
+                stats.remove(id);
+                analytics.remove(id);
+            });
+        }
+        
         /**
          * 访问短URL（重定向）
          */
         public String redirect(String shortCode) {
-            String longUrl = shortener.expand(shortCode);
-            if (longUrl != null && stats.containsKey(shortCode)) {
-                stats.get(shortCode).visit();
+            long id = Base62UrlShortener.decode(shortCode);
+            String longUrl = resolve(id);
+            if (longUrl != null) {
+                visits.record(id);
+            }
+            return longUrl;
+        }
+        
+        /**
+         * 访问短URL，同时记录访客和来源
+         * 
+         * @param visitorId 访客标识（cookie / 设备ID 的哈希）
+         * @param referrer 来源，可以为null
+         */
+        public String redirect(String shortCode, long visitorId, String referrer) {
+            long id = Base62UrlShortener.decode(shortCode);
+            String longUrl = resolve(id);
+            if (longUrl != null) {
+                long now = System.currentTimeMillis();
+                visits.record(id, now);
+                analytics.record(id, visitorId, referrer, now);
+            }
+            return longUrl;
+        }
+        
+        /**
+         * 链接分析报告，没有带访客信息的访问时返回null
+         */
+        public LinkAnalytics.LinkReport getAnalytics(String shortCode, int topReferrers) {
+            long id = Base62UrlShortener.decode(shortCode);
+            return id < 0 ? null : analytics.report(id, topReferrers);
+        }
+        
+        /**
+         * 跨节点汇总用：导出/合并单个链接的sketch
+         */
+        public LinkAnalytics getLinkAnalytics() {
+            return analytics;
+        }
+        
+        /**
+         * 短码ID -> 长URL，先查热点缓存
+         */
+        private String resolve(long id) {
+            if (id < 0 || shortener.isExpired(id)) {
+                return null;  // 过期的链接在缓存里也不能再命中
+            }
+            String longUrl = hotLinks.get(id);
+            if (longUrl == null) {
+                longUrl = shortener.expand(id);
+                if (longUrl == null) {
+                    return null;
+                }
+                hotLinks.put(id, longUrl);
             }
             return longUrl;
         }
@@ -190,7 +532,31 @@ public class UrlShortener {
          * 获取统计信息
          */
         public UrlStats getStats(String shortCode) {
-            return stats.get(shortCode);
+            long id = Base62UrlShortener.decode(shortCode);
+            return id < 0 ? null : stats.get(id);
+        }
+        
+        /**
+         * 把累加的访问计数合并到统计
+         * 
+         * synchronized 保证定时刷新和手动刷新不会同时写 UrlStats。
+         * 
+         * @return 本次合并的访问次数
+         */
+        public synchronized long flushVisits() {
+            return visits.drain((id, count, lastVisitTime) -> {
+                UrlStats urlStats = stats.get(id);
+                if (urlStats != null) {
+                    urlStats.applyVisits(count, lastVisitTime);
+                }
+            });
+        }
+        
+        @Override
+        public void close() {
+            flusher.shutdown();
+            flushVisits();
+            shortener.close();
         }
     }
     
@@ -220,10 +586,17 @@ public class UrlShortener {
             String redirectUrl = urlShortener.redirect(shortCode1);
             System.out.println("重定向到: " + redirectUrl);
         }
+        String[] referrers = {"weibo.com", "weixin.qq.com", "weixin.qq.com", "google.com"};
+        for (int i = 0; i < 1000; i++) {
+            urlShortener.redirect(shortCode1, i % 300, referrers[i % referrers.length]);
+        }
         
-        // 查看统计
+        // 查看统计（访问计数异步合并，先手动刷新一次）
+        urlShortener.flushVisits();
         System.out.println("\n统计信息:");
         System.out.println(urlShortener.getStats(shortCode1));
+        System.out.println(urlShortener.getAnalytics(shortCode1, 3));
+        urlShortener.close();
     }
 }
 
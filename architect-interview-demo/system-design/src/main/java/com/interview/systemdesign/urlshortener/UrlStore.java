@@ -0,0 +1,82 @@
+package com.interview.systemdesign.urlshortener;
+
+/**
+ * 短码ID -> 长URL 的存储
+ *
+ * 短码本身不存，decode(shortCode) 得到ID后按ID查。
+ * Long.MIN_VALUE 是保留值，put 会抛 IllegalArgumentException，其余ID（含0）都可用。
+ */
+public interface UrlStore extends AutoCloseable {
+
+    void put(long id, String longUrl);
+
+    /**
+     * 写入带有效期的映射；持久化实现把过期时间和映射一起落盘，重启后由 forEachExpiring 交还
+     */
+    default void put(long id, String longUrl, long expireAtMillis) {
+        put(id, longUrl);
+    }
+
+    /**
+     * @return 长URL，不存在返回null
+     */
+    String get(long id);
+
+    /**
+     * @return 是否删除了已存在的映射
+     */
+    boolean remove(long id);
+
+    int size();
+
+    /**
+     * 遍历所有存活的映射（启动时重建去重索引用）
+     */
+    void forEach(ConcurrentLongObjectMap.EntryConsumer<String> consumer);
+
+    /**
+     * 遍历带有效期的存活映射（启动时恢复过期时间轮用）；不持久化的实现重启后没有可恢复的
+     */
+    default void forEachExpiring(ExpiryConsumer consumer) {
+    }
+
+    interface ExpiryConsumer {
+        void accept(long id, long expireAtMillis);
+    }
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * 堆内存储 - 默认实现，重启即丢失
+     */
+    class HeapUrlStore implements UrlStore {
+        private final ConcurrentLongObjectMap<String> idToLong = new ConcurrentLongObjectMap<>();
+
+        @Override
+        public void put(long id, String longUrl) {
+            idToLong.put(id, longUrl);
+        }
+
+        @Override
+        public String get(long id) {
+            return idToLong.get(id);
+        }
+
+        @Override
+        public boolean remove(long id) {
+            return idToLong.remove(id) != null;
+        }
+
+        @Override
+        public int size() {
+            return idToLong.size();
+        }
+
+        @Override
+        public void forEach(ConcurrentLongObjectMap.EntryConsumer<String> consumer) {
+            idToLong.forEach(consumer);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.interview.systemdesign.urlshortener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 访问计数累加器
+ *
+ * 问题：
+ * 爆款链接每次跳转都去改同一个 UrlStats 对象，所有请求线程在同一个缓存行上竞争。
+ *
+ * 方案：
+ * 1. 每个线程一个本地缓冲（id -> 次数 + 最后访问时间），跳转只写自己的缓冲
+ * 2. 缓冲的锁只有本线程和刷新线程会拿，基本无竞争
+ * 3. 刷新线程定期把各缓冲整体换成新数组，再把换下来的数据批量合并到统计存储
+ */
+public class VisitAccumulator {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final List<Buffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Buffer> local = ThreadLocal.withInitial(this::register);
+
+    /**
+     * 记录一次访问
+     */
+    public void record(long id) {
+        record(id, System.currentTimeMillis());
+    }
+
+    public void record(long id, long visitTimeMillis) {
+        local.get().add(id, visitTimeMillis);
+    }
+
+    /**
+     * 把所有线程缓冲里的计数交给sink，并清空缓冲
+     *
+     * 调用方需保证同一时间只有一个线程在drain（单写者合并）。
+     *
+     * @return 合并的访问次数
+     */
+    public long drain(VisitSink sink) {
+        long total = 0;
+        for (Buffer buffer : buffers) {
+            Snapshot snapshot = buffer.swap();
+            if (snapshot == null) {
+                if (!buffer.owner.isAlive()) {
+                    buffers.remove(buffer);  // 线程已结束且没有残留数据
+                }
+                continue;
+            }
+            for (int i = 0; i < snapshot.ids.length; i++) {
+                if (snapshot.ids[i] != EMPTY) {
+                    sink.accept(snapshot.ids[i], snapshot.counts[i], snapshot.lastVisits[i]);
+                    total += snapshot.counts[i];
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 合并回调
+     */
+    @FunctionalInterface
+    public interface VisitSink {
+        void accept(long id, long count, long lastVisitMillis);
+    }
+
+    private Buffer register() {
+        Buffer buffer = new Buffer(Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private static final class Snapshot {
+        final long[] ids;
+        final long[] counts;
+        final long[] lastVisits;
+
+        Snapshot(long[] ids, long[] counts, long[] lastVisits) {
+            this.ids = ids;
+            this.counts = counts;
+            this.lastVisits = lastVisits;
+        }
+    }
+
+    /**
+     * 单线程的 id -> (次数, 最后访问时间) 开放寻址表
+     */
+    private static final class Buffer {
+        private final Thread owner;
+        private long[] ids;
+        private long[] counts;
+        private long[] lastVisits;
+        private int size;
+
+        Buffer(Thread owner) {
+            this.owner = owner;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        synchronized void add(long id, long visitTimeMillis) {
+            int mask = ids.length - 1;
+            int slot = (int) ConcurrentLongObjectMap.hash(id) & mask;
+            while (ids[slot] != EMPTY && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            if (ids[slot] == EMPTY) {
+                ids[slot] = id;
+                if (++size > (ids.length >>> 2) * 3) {
+                    counts[slot] = 1;
+                    lastVisits[slot] = visitTimeMillis;
+                    resize();
+                    return;
+                }
+            }
+            counts[slot]++;
+            lastVisits[slot] = visitTimeMillis;
+        }
+
+        /**
+         * 换上空表，返回旧数据；没有数据返回null
+         *
+         * 新表沿用当前容量，热点线程不用每个周期重新扩容。
+         */
+        synchronized Snapshot swap() {
+            if (size == 0) {
+                return null;
+            }
+            Snapshot snapshot = new Snapshot(ids, counts, lastVisits);
+            allocate(ids.length);
+            return snapshot;
+        }
+
+        private void allocate(int capacity) {
+            ids = new long[capacity];
+            counts = new long[capacity];
+            lastVisits = new long[capacity];
+            Arrays.fill(ids, EMPTY);
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldIds = ids;
+            long[] oldCounts = counts;
+            long[] oldLastVisits = lastVisits;
+            int oldSize = size;
+            allocate(oldIds.length << 1);
+            int mask = ids.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] != EMPTY) {
+                    int slot = (int) ConcurrentLongObjectMap.hash(oldIds[i]) & mask;
+                    while (ids[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    ids[slot] = oldIds[i];
+                    counts[slot] = oldCounts[i];
+                    lastVisits[slot] = oldLastVisits[i];
+                }
+            }
+            size = oldSize;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.interview.systemdesign.im;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.interview.systemdesign.im.IMSystemDesign.GroupService;
+import com.interview.systemdesign.im.IMSystemDesign.Message;
+import com.interview.systemdesign.im.IMSystemDesign.MessageService;
+import com.interview.systemdesign.im.IMSystemDesign.MessageType;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 投递确认与重传：定时线程先停掉，由测试手动推进时间轮
+ *
+ * 默认5秒超时、500毫秒一个tick，投递后第10个tick做第一次检查。
+ */
+class MessageServiceDeliveryTest {
+
+    private static final int ACK_TIMEOUT_TICKS = 10;
+
+    @Test
+    void legacyReceiveIsNotRedelivered() throws Exception {
+        try (MessageService messages = new MessageService(new GroupService())) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            send(messages, "alice", 1, "bob", "hi");
+
+            Message received = messages.receiveMessage("bob");
+            assertNotNull(received);
+            assertEquals("hi", received.getContent());
+            assertEquals(1, messages.getDeliveredSeq("alice", "bob"));
+
+            advance(delivery, ACK_TIMEOUT_TICKS * 8);
+            assertEquals(0, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void pullOfflineAcknowledgesEverythingPulled() {
+        try (MessageService messages = new MessageService(new GroupService())) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            send(messages, "alice", 1, "bob", "one");
+            send(messages, "alice", 2, "bob", "two");
+
+            assertEquals(2, messages.pullOffline("bob").size());
+            assertEquals(2, messages.getDeliveredSeq("alice", "bob"));
+
+            advance(delivery, ACK_TIMEOUT_TICKS * 8);
+            assertEquals(0, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void unacknowledgedMessageIsRedelivered() {
+        try (MessageService messages = new MessageService(new GroupService())) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            send(messages, "alice", 1, "bob", "hi");
+
+            advance(delivery, ACK_TIMEOUT_TICKS);
+            assertEquals(1, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void ackAheadOfLogIsClamped() {
+        try (MessageService messages = new MessageService(new GroupService())) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            send(messages, "alice", 1, "bob", "one");
+
+            messages.ackDelivered("bob", "alice:bob", 100);
+            assertEquals(1, messages.getDeliveredSeq("alice", "bob"));
+
+            // 提前ack的部分没有生效，第二条仍然要重传
+            send(messages, "alice", 2, "bob", "two");
+            advance(delivery, ACK_TIMEOUT_TICKS);
+            assertEquals(1, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void lateGroupJoinerIsNotReplayedHistory() {
+        GroupService groups = new GroupService();
+        try (MessageService messages = new MessageService(groups)) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            String groupId = groups.createGroup("team", "alice");
+            groups.joinGroup(groupId, "bob");
+            for (int i = 1; i <= 3; i++) {
+                sendToGroup(messages, "alice", i, groupId, "before-" + i);
+            }
+            groups.joinGroup(groupId, "carol");
+            sendToGroup(messages, "alice", 4, groupId, "after");
+            messages.ackDelivered("bob", "group:" + groupId, 4);
+
+            // carol只欠入群之后的那一条
+            advance(delivery, ACK_TIMEOUT_TICKS);
+            assertEquals(1, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void offlineUserIsNotRedelivered() {
+        try (MessageService messages = new MessageService(new GroupService())) {
+            DeliveryTracker delivery = stoppedTracker(messages);
+            messages.setOnlineCheck(userId -> !userId.equals("bob"));
+            send(messages, "alice", 1, "bob", "hi");
+
+            advance(delivery, ACK_TIMEOUT_TICKS * 8);
+            assertEquals(0, delivery.getRedeliveredCount());
+        }
+    }
+
+    @Test
+    void farBehindRedeliversNewestBatch() {
+        MessageLog.Registry conversations = new MessageLog.Registry();
+        MessageLog log = conversations.getOrCreate("alice:bob");
+        List<Long> redelivered = new ArrayList<>();
+        DeliveryTracker delivery = new DeliveryTracker(conversations::get,
+            (userId, pointer) -> redelivered.add(FanoutEngine.seq(pointer)));
+        delivery.close();
+        int count = DeliveryTracker.MAX_REDELIVER_BATCH * 2;
+        for (int i = 1; i <= count; i++) {
+            long seq = log.append(new Message(i, "alice", "bob", "m" + i, MessageType.TEXT));
+            delivery.expect("bob", log.getConvId(), seq);
+        }
+
+        // 落后两批，补的是最新的一批
+        advance(delivery, ACK_TIMEOUT_TICKS);
+        assertEquals(DeliveryTracker.MAX_REDELIVER_BATCH, redelivered.size());
+        assertEquals(count - DeliveryTracker.MAX_REDELIVER_BATCH + 1, (long) redelivered.get(0));
+        assertEquals(count, (long) redelivered.get(redelivered.size() - 1));
+    }
+
+    private static DeliveryTracker stoppedTracker(MessageService messages) {
+        DeliveryTracker delivery = messages.getDeliveryTracker();
+        delivery.close();
+        return delivery;
+    }
+
+    private static void send(MessageService messages, String from, long clientMsgId, String to, String content) {
+        messages.sendMessage(from, clientMsgId, to, content, MessageType.TEXT).getDelivery().join();
+    }
+
+    private static void sendToGroup(MessageService messages, String from, long clientMsgId, String groupId,
+                                    String content) {
+        messages.sendGroupMessage(from, clientMsgId, groupId, content, MessageType.TEXT).getDelivery().join();
+    }
+
+    private static void advance(DeliveryTracker delivery, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            delivery.tick();
+        }
+    }
+}